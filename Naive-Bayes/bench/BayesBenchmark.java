@@ -0,0 +1,172 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Benchmarks for ARFF parsing, Naive Bayes and TAN training (split into the count, mutual
+ * information and Prim phases, and counting from rows against counting from a columnar data set)
+ * and per-instance against batch scoring. Every benchmark is warmed
+ * up and then timed over several iterations, and the mean and standard deviation are reported in
+ * a fixed format that can be compared across releases.
+ *
+ * The fixed inputs are the lymph, Case1 and Case2 data sets in the tests directory. The synthetic
+ * inputs are drawn by DatasetGenerator for every combination of the given instance counts,
+ * feature counts and cardinalities.
+ *
+ * Usage: java -cp out:bench BayesBenchmark [-data tests] [-instances 10000,100000] [-features 20,100]
+ *        [-values 2,10] [-classes 2] [-strength 0.5] [-warmup 3] [-iterations 5] [-csv]
+ */
+public class BayesBenchmark {
+
+    // Written by every benchmark so the JIT cannot drop the work being measured
+    static volatile double sink;
+
+    private static int warmupIterations = 3;
+    private static int measurementIterations = 5;
+    private static boolean csv = false;
+
+    /**
+     * A piece of work to time. Setup that should not be measured happens before run is called.
+     */
+    interface Benchmark {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dataDirectory = "tests";
+        int[] instanceCounts = {10000, 100000};
+        int[] featureCounts = {20, 100};
+        int[] cardinalities = {2, 10};
+        int numClasses = 2;
+        double strength = 0.5;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": dataDirectory = args[++i]; break;
+                case "-instances": instanceCounts = parseList(args[++i]); break;
+                case "-features": featureCounts = parseList(args[++i]); break;
+                case "-values": cardinalities = parseList(args[++i]); break;
+                case "-classes": numClasses = Integer.parseInt(args[++i]); break;
+                case "-strength": strength = Double.parseDouble(args[++i]); break;
+                case "-warmup": warmupIterations = Integer.parseInt(args[++i]); break;
+                case "-iterations": measurementIterations = Integer.parseInt(args[++i]); break;
+                case "-csv": csv = true; break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        if (csv)
+            System.out.println("benchmark,input,iterations,mean_ms,stddev_ms");
+
+        // Fixed inputs shipped with the module
+        String[][] fixedInputs = {
+                {"lymph", "lymph_train.arff", "lymph_test.arff"},
+                {"Case1", "Case1.train.arff", "Case1.test.arff"},
+                {"Case2", "Case2.train.arff", "Case2.test.arff"}};
+        for (String[] input: fixedInputs)
+            benchmarkFiles(input[0], new File(dataDirectory, input[1]).getPath(),
+                    new File(dataDirectory, input[2]).getPath());
+
+        // Synthetic inputs of growing size
+        for (int instances: instanceCounts)
+            for (int numFeatures: featureCounts)
+                for (int values: cardinalities) {
+                    String name = "n=" + instances + " f=" + numFeatures + " v=" + values + " c=" + numClasses;
+                    File file = File.createTempFile("bayes-benchmark", ".arff");
+                    file.deleteOnExit();
+                    new DatasetGenerator(numFeatures, values, numClasses, strength, 42).writeArff(file.getPath(), instances);
+                    benchmarkFiles(name, file.getPath(), file.getPath());
+                    file.delete();
+                }
+    }
+
+    /**
+     * Runs every benchmark on one training and test file
+     */
+    private static void benchmarkFiles(String name, String trainFile, String testFile) throws Exception {
+        ArrayList<Feature> features = new ArrayList<>();
+        ArrayList<String> classValues = new ArrayList<>();
+        ArrayList<Instance> trainingSet, testSet;
+        try (ArffReader reader = new ArffReader(trainFile, features, classValues)) {
+            trainingSet = reader.readAll();
+        }
+        try (ArffReader reader = new ArffReader(testFile, features, classValues)) {
+            testSet = reader.readAll();
+        }
+        ColumnarDataset columns = new ColumnarDataset(features, classValues.size(), false);
+        trainingSet.forEach(columns::add);
+
+        measure("parse", name, () -> {
+            try (ArffReader reader = new ArffReader(trainFile, new ArrayList<>(), new ArrayList<>())) {
+                reader.forEach(instance -> sink += instance.classValue);
+            }
+        });
+
+        NaiveBayes naiveBayes = new NaiveBayes(classValues, features);
+        measure("nb.train", name, () -> {
+            naiveBayes.train(trainingSet);
+            sink += naiveBayes.probabilityOfClass(0);
+        });
+        measure("nb.train.columnar", name, () -> {
+            naiveBayes.train(columns);
+            sink += naiveBayes.probabilityOfClass(0);
+        });
+
+        TAN tan = new TAN(classValues, features);
+        measure("tan.train.count", name, () -> {
+            tan.reset();
+            tan.update(trainingSet);
+            sink += tan.naiveBayes().numInstances();
+        });
+        measure("tan.train.count.columnar", name, () -> {
+            tan.train(columns);
+            sink += tan.naiveBayes().numInstances();
+        });
+        measure("tan.train.mi", name, () -> sink += tan.computeMutualInformation()[0][0]);
+        double[][] mutualInformation = tan.computeMutualInformation();
+        measure("tan.train.prim", name, () -> sink += TAN.Prim(mutualInformation)[0]);
+        measure("tan.train", name, () -> {
+            tan.train(trainingSet);
+            sink += tan.parents()[0];
+        });
+
+        for (BayesNetwork bn: new BayesNetwork[]{naiveBayes, tan}) {
+            String prefix = bn instanceof TAN ? "tan" : "nb";
+            measure(prefix + ".score.single", name, () -> {
+                for (Instance instance: testSet)
+                    sink += bn.posterior(instance.features)[0];
+            });
+            measure(prefix + ".score.batch", name, () -> sink += bn.classify(testSet).labels[0]);
+        }
+    }
+
+    /**
+     * Warms up and then times a benchmark, printing the mean and standard deviation per iteration
+     */
+    private static void measure(String benchmark, String input, Benchmark body) throws Exception {
+        for (int i = 0; i < warmupIterations; i++)
+            body.run();
+        double[] times = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            long start = System.nanoTime();
+            body.run();
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        double mean = Arrays.stream(times).average().orElse(0.0);
+        double variance = Arrays.stream(times).map(t -> (t - mean) * (t - mean)).sum()
+                / Math.max(1, times.length - 1);
+        if (csv)
+            System.out.println(String.format(Locale.ROOT, "%s,%s,%d,%.3f,%.3f",
+                    benchmark, input, times.length, mean, Math.sqrt(variance)));
+        else
+            System.out.println(String.format(Locale.ROOT, "%-24s %-32s %12.3f ms/op  +- %.3f",
+                    benchmark, input, mean, Math.sqrt(variance)));
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+}
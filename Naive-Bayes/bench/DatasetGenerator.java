@@ -0,0 +1,269 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Generates nominal data sets from a known tree augmented Bayes net, for scaling tests far beyond
+ * the bundled data sets and for checking that a TAN recovers the true tree.
+ *
+ * The class is drawn first, then every feature in tree order. The root only depends on the class.
+ * Every other feature copies a value determined by its parent's value and the class with
+ * probability strength, and otherwise draws from a distribution that depends only on the class.
+ * Strength 0 therefore gives Naive Bayes data and strength 1 makes every feature a function of its
+ * parent and the class. The tables take O(F * V * C) memory whatever the cardinality.
+ *
+ * Usage: java -cp out:bench DatasetGenerator [-rows 1000000] [-features 100] [-values 4] [-classes 2]
+ *        [-strength 0.5] [-seed 42] [-out file.arff] [-check]
+ * With -out the rows are written to an ARFF file, with -check they are streamed straight into a TAN
+ * and the fraction of true tree edges it recovers is printed.
+ */
+public class DatasetGenerator {
+
+    private final int numFeatures, cardinality, numClasses;
+    private final double strength;
+    private final Random random;
+
+    private final ArrayList<Feature> features = new ArrayList<>();
+    private final ArrayList<String> classValues = new ArrayList<>();
+    // Parent of every feature in the true tree, -1 for the root, and the order to draw them in
+    private final int[] parents;
+    private final int[] order;
+    // Cumulative distribution of the class, and of every feature given the class when it does
+    // not copy its parent, indexed by [feature][class * values + value]
+    private final double[] classDistribution;
+    private final double[][] featureDistributions;
+    // Value copied by each feature, (parentValue * multiplier + offset[class]) mod values
+    private final int[] multipliers;
+    private final int[][] offsets;
+
+    /**
+     * Creates a random ground truth net
+     * @param numFeatures Number of features
+     * @param cardinality Number of values of every feature
+     * @param numClasses Number of class values
+     * @param strength Probability in [0, 1] that a feature copies the value given by its parent
+     * @param seed Seed of the random number generator, so data sets can be generated again
+     */
+    DatasetGenerator(int numFeatures, int cardinality, int numClasses, double strength, long seed) {
+        this.numFeatures = numFeatures;
+        this.cardinality = cardinality;
+        this.numClasses = numClasses;
+        this.strength = strength;
+        this.random = new Random(seed);
+
+        ArrayList<String> values = new ArrayList<>();
+        for (int i = 0; i < cardinality; i++)
+            values.add("v" + i);
+        for (int i = 0; i < numFeatures; i++)
+            features.add(new Feature("f" + i, new ArrayList<>(values)));
+        for (int i = 0; i < numClasses; i++)
+            classValues.add("c" + i);
+
+        // A random tree: every feature hangs off a random feature drawn before it
+        order = new int[numFeatures];
+        for (int i = 0; i < numFeatures; i++)
+            order[i] = i;
+        for (int i = numFeatures - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        parents = new int[numFeatures];
+        parents[order[0]] = -1;
+        for (int i = 1; i < numFeatures; i++)
+            parents[order[i]] = order[random.nextInt(i)];
+
+        classDistribution = randomDistribution(numClasses);
+        featureDistributions = new double[numFeatures][];
+        multipliers = new int[numFeatures];
+        offsets = new int[numFeatures][numClasses];
+        for (int i = 0; i < numFeatures; i++) {
+            featureDistributions[i] = new double[numClasses * cardinality];
+            for (int c = 0; c < numClasses; c++)
+                System.arraycopy(randomDistribution(cardinality), 0, featureDistributions[i], c * cardinality, cardinality);
+            multipliers[i] = 1 + random.nextInt(Math.max(1, cardinality - 1));
+            for (int c = 0; c < numClasses; c++)
+                offsets[i][c] = random.nextInt(cardinality);
+        }
+    }
+
+    /**
+     * Returns a random cumulative distribution over the given number of outcomes
+     */
+    private double[] randomDistribution(int size) {
+        double[] cumulative = new double[size];
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            // Exponential weights give a flat Dirichlet distribution
+            sum += -Math.log(1.0 - random.nextDouble());
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < size; i++)
+            cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    /**
+     * Draws an outcome from cumulative[from, from + size)
+     */
+    private int sample(double[] cumulative, int from, int size) {
+        double u = random.nextDouble();
+        int low = from, high = from + size - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < u)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low - from;
+    }
+
+    ArrayList<Feature> features() {
+        return features;
+    }
+
+    ArrayList<String> classValues() {
+        return classValues;
+    }
+
+    /**
+     * Returns the parent of every feature in the true tree, -1 for the root
+     */
+    int[] parents() {
+        return parents;
+    }
+
+    /**
+     * Draws the next instance
+     */
+    Instance next() {
+        int classValue = sample(classDistribution, 0, numClasses);
+        int[] row = new int[numFeatures];
+        for (int feature: order) {
+            int parent = parents[feature];
+            if (parent != -1 && random.nextDouble() < strength)
+                row[feature] = (int) (((long) row[parent] * multipliers[feature] + offsets[feature][classValue]) % cardinality);
+            else
+                row[feature] = sample(featureDistributions[feature], classValue * cardinality, cardinality);
+        }
+        return new Instance(row, classValue);
+    }
+
+    /**
+     * Draws instances and passes each one to the consumer, e.g. a trainer's update method
+     * @param rows Number of instances to draw
+     * @param consumer Called with every instance
+     */
+    void stream(long rows, Consumer<Instance> consumer) {
+        for (long i = 0; i < rows; i++)
+            consumer.accept(next());
+    }
+
+    /**
+     * Draws instances and writes them to an ARFF file
+     * @param filename The file to write to
+     * @param rows Number of instances to draw
+     */
+    void writeArff(String filename, long rows) throws IOException {
+        byte[][] valueNames = new byte[cardinality][];
+        for (int i = 0; i < cardinality; i++)
+            valueNames[i] = features.get(0).allowedValues.get(i).getBytes(StandardCharsets.UTF_8);
+        byte[][] classNames = new byte[numClasses][];
+        for (int i = 0; i < numClasses; i++)
+            classNames[i] = classValues.get(i).getBytes(StandardCharsets.UTF_8);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 20)) {
+            StringBuilder header = new StringBuilder("@relation synthetic\n");
+            for (Feature feature: features)
+                header.append("@attribute ").append(feature.featureName).append(' ')
+                        .append(valueList(feature.allowedValues)).append('\n');
+            header.append("@attribute class ").append(valueList(classValues)).append('\n');
+            header.append("@data\n");
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+            for (long n = 0; n < rows; n++) {
+                Instance instance = next();
+                for (int value: instance.features) {
+                    out.write(valueNames[value]);
+                    out.write(',');
+                }
+                out.write(classNames[instance.classValue]);
+                out.write('\n');
+            }
+        }
+    }
+
+    private static String valueList(ArrayList<String> values) {
+        return "{" + String.join(", ", values) + "}";
+    }
+
+    /**
+     * Compares a learned tree with the true tree, ignoring the direction of the edges
+     * @param learnedParents The parent of every feature in the learned tree, -1 for the root
+     * @return The fraction of true edges that are also in the learned tree
+     */
+    double edgeRecovery(int[] learnedParents) {
+        int trueEdges = 0, recovered = 0;
+        for (int i = 0; i < numFeatures; i++) {
+            if (parents[i] == -1)
+                continue;
+            trueEdges++;
+            if (learnedParents[i] == parents[i] || learnedParents[parents[i]] == i)
+                recovered++;
+        }
+        return trueEdges == 0 ? 1.0 : (double) recovered / trueEdges;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long rows = 1000000;
+        int numFeatures = 100, cardinality = 4, numClasses = 2;
+        double strength = 0.5;
+        long seed = 42;
+        String out = null;
+        boolean check = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-rows": rows = Long.parseLong(args[++i]); break;
+                case "-features": numFeatures = Integer.parseInt(args[++i]); break;
+                case "-values": cardinality = Integer.parseInt(args[++i]); break;
+                case "-classes": numClasses = Integer.parseInt(args[++i]); break;
+                case "-strength": strength = Double.parseDouble(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-out": out = args[++i]; break;
+                case "-check": check = true; break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (out == null && !check) {
+            System.out.println("Nothing to do, give -out <file> and/or -check");
+            System.exit(1);
+        }
+
+        if (out != null) {
+            long start = System.nanoTime();
+            new DatasetGenerator(numFeatures, cardinality, numClasses, strength, seed).writeArff(out, rows);
+            System.out.println(String.format(Locale.ROOT, "Wrote %d rows to %s in %.1f s",
+                    rows, out, (System.nanoTime() - start) / 1e9));
+        }
+        if (check) {
+            DatasetGenerator generator = new DatasetGenerator(numFeatures, cardinality, numClasses, strength, seed);
+            TAN tan = new TAN(generator.classValues(), generator.features());
+            long start = System.nanoTime();
+            generator.stream(rows, tan::update);
+            int[] learnedParents = tan.parents();
+            System.out.println(String.format(Locale.ROOT, "Trained a TAN on %d rows in %.1f s, recovered %.1f%% of the true edges",
+                    rows, (System.nanoTime() - start) / 1e9, 100 * generator.edgeRecovery(learnedParents)));
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Streams the instances of an ARFF file. The file is memory-mapped and every data row is split
+ * and interned straight from its bytes, so rows can be handed to a consumer one at a time without
+ * ever holding the whole data set in memory.
+ */
+public class ArffReader implements Closeable {
+
+    // Largest region of the file mapped at once
+    private static final long MAP_SIZE = 1L << 30;
+
+    private final ArrayList<Feature> features;
+    // Number of buckets for hashed features, 0 if no feature is hashed
+    private final int hashBuckets;
+    // Dictionary used to intern class values into class codes
+    private final Feature classFeature;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+
+    // The current line, without its line terminator
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineNumber;
+    // Number of data rows read so far
+    private long rows;
+
+    /**
+     * Opens an ARFF file and reads its header. If no features are known yet the attributes declared
+     * in the header are added to features and classValues, otherwise the header is skipped and
+     * the rows are interned with the features that are already known.
+     * @param filename The ARFF file to be read
+     * @param features List of all features, filled in if empty
+     * @param classValues List of all class values, filled in if features is empty
+     */
+    ArffReader(String filename, ArrayList<Feature> features, ArrayList<String> classValues) throws IOException {
+        this(filename, features, classValues, 0);
+    }
+
+    /**
+     * Opens an ARFF file like the constructor above, but hashes the values of string attributes
+     * and of nominal attributes declaring more than hashBuckets values into hashBuckets buckets
+     * @param hashBuckets Number of buckets of hashed features, or 0 to hash no feature
+     */
+    ArffReader(String filename, ArrayList<Feature> features, ArrayList<String> classValues,
+               int hashBuckets) throws IOException {
+        this.features = features;
+        this.hashBuckets = hashBuckets;
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        map(0);
+
+        boolean isTraining = features.isEmpty();
+        while (readLine()) {
+            int start = start(), end = end();
+            if (start == end || line[start] == '%' || line[start] != '@')
+                continue;
+            String header = new String(line, start, end - start, StandardCharsets.UTF_8);
+            if (header.toLowerCase().startsWith("@data"))
+                break;
+            if (isTraining && !header.toLowerCase().startsWith("@relation"))
+                readAttribute(header, classValues);
+        }
+        this.classFeature = new Feature("class", classValues);
+    }
+
+    /**
+     * Reads an attribute declaration and stores the feature, or the class values if it is the class
+     */
+    private void readAttribute(String line, ArrayList<String> classValues) {
+        String[] values = line.split("\\s+", 3);
+        values[2] = values[2].trim();
+        boolean isClass = values[1].equals("'class'") || values[1].equals("class");
+        if (!values[2].startsWith("{")) {
+            // Only string attributes can be used without a list of values, and only hashed
+            if (isClass || hashBuckets == 0 || !values[2].equalsIgnoreCase("string"))
+                throw new IllegalArgumentException("Attribute " + values[1] + " of type " + values[2]
+                        + " is not supported" + (isClass ? "" : ", only nominal attributes or hashed string attributes are"));
+            features.add(new Feature(values[1], new ArrayList<>(), hashBuckets));
+            return;
+        }
+        values[2] = values[2].substring(1, values[2].length() - 1).trim();
+        String[] allowedValues = values[2].split("\\s*,\\s*");
+        if (isClass)
+            classValues.addAll(Arrays.asList(allowedValues));
+        else if (hashBuckets > 0 && allowedValues.length > hashBuckets)
+            features.add(new Feature(values[1], new ArrayList<>(Arrays.asList(allowedValues)), hashBuckets));
+        else
+            features.add(new Feature(values[1], new ArrayList<>(Arrays.asList(allowedValues))));
+    }
+
+    /**
+     * Reads the remaining rows of the file and passes each one to the consumer as it is parsed
+     * @param consumer Called with every instance in file order
+     */
+    void forEach(Consumer<Instance> consumer) throws IOException {
+        while (readLine()) {
+            int start = start(), end = end();
+            if (start == end || line[start] == '%' || line[start] == '@')
+                continue;
+            consumer.accept(parseRow(start, end));
+            rows++;
+        }
+    }
+
+    /**
+     * Returns the number of data rows read so far
+     */
+    long rows() {
+        return rows;
+    }
+
+    /**
+     * Reads the remaining rows of the file into memory
+     * @return ArrayList of all instances in the file
+     */
+    ArrayList<Instance> readAll() throws IOException {
+        ArrayList<Instance> instances = new ArrayList<>();
+        forEach(instances::add);
+        return instances;
+    }
+
+    /**
+     * Splits line[start, end) at commas and interns every value with its feature's dictionary
+     */
+    private Instance parseRow(int start, int end) {
+        int[] row = new int[features.size()];
+        int from = start;
+        for (int i = 0; i <= row.length; i++) {
+            int to = from;
+            while (to < end && line[to] != ',')
+                to++;
+            if ((to == end) != (i == row.length))
+                throw new IllegalArgumentException("Line " + lineNumber + " does not have "
+                        + (row.length + 1) + " comma separated values");
+            // Trim the whitespace around the value
+            int valueStart = from, valueEnd = to;
+            while (valueStart < valueEnd && line[valueStart] <= ' ')
+                valueStart++;
+            while (valueEnd > valueStart && line[valueEnd - 1] <= ' ')
+                valueEnd--;
+            if (i < row.length)
+                row[i] = features.get(i).encode(line, valueStart, valueEnd);
+            else {
+                int classValue = classFeature.encode(line, valueStart, valueEnd);
+                if (classValue != -1)
+                    return new Instance(row, classValue);
+                // Keep a class value that was not declared, e.g. ?, so it can still be printed
+                return new Instance(row, -1, new String(line, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+            }
+            from = to + 1;
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Copies the next line of the file into line, mapping the next region of the file as needed
+     * @return false if the end of the file has been reached
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean read = false;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                long next = bufferStart + buffer.limit();
+                if (next >= fileSize)
+                    break;
+                map(next);
+            }
+            read = true;
+            byte b = buffer.get();
+            if (b == '\n')
+                break;
+            if (lineLength == line.length)
+                line = Arrays.copyOf(line, line.length * 2);
+            line[lineLength++] = b;
+        }
+        if (read)
+            lineNumber++;
+        return read;
+    }
+
+    private void map(long position) throws IOException {
+        bufferStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, fileSize - position));
+    }
+
+    /**
+     * Returns the position of the first non-whitespace byte of the current line
+     */
+    private int start() {
+        int start = 0;
+        while (start < lineLength && line[start] <= ' ')
+            start++;
+        return start;
+    }
+
+    /**
+     * Returns the position after the last non-whitespace byte of the current line
+     */
+    private int end() {
+        int end = lineLength;
+        while (end > 0 && line[end - 1] <= ' ')
+            end--;
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -1,9 +1,187 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 public abstract class BayesNetwork {
 
-    abstract double probabilityClassGivenFeatures(String[] featureList, String classValue);
+    // Batches with at least this many instances are scored on all cores
+    static final int PARALLEL_THRESHOLD = 4096;
 
-    abstract void train(ArrayList<Instance> instances);
+    // Incremented whenever the counts the net is trained from change
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Posterior probabilities of a batch of instances together with the most probable class code
+     * of each instance
+     */
+    static class Predictions {
+
+        // Indexed by [instance][class code]
+        final double[][] posteriors;
+        final int[] labels;
+
+        Predictions(int numInstances) {
+            this.posteriors = new double[numInstances][];
+            this.labels = new int[numInstances];
+        }
+
+    }
+
+    /**
+     * Returns a number that changes whenever the net is trained any further or reset, so answers
+     * cached under one version are known to be out of date under another
+     */
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Records that the counts the net is trained from have changed. Called after the counts have
+     * been changed, so tables derived under the new version see all of the change.
+     */
+    void modified() {
+        version.incrementAndGet();
+    }
+
+    abstract double probabilityClassGivenFeatures(int[] featureList, int classValue);
+
+    /**
+     * Calculates the probability of every class given the feature values
+     * @param featureList Codes of the feature values for the instance
+     * @return The probability of each class code given the feature values
+     */
+    abstract double[] posterior(int[] featureList);
+
+    /**
+     * Forgets all instances the net has been trained on
+     */
+    abstract void reset();
+
+    /**
+     * Adds one instance to the counts the net has been trained on. The probabilities are derived
+     * from the counts again the next time the net is queried.
+     * @param instance The instance to learn from
+     */
+    abstract void update(Instance instance);
+
+    /**
+     * Adds a batch of instances to the counts the net has been trained on. Large batches are
+     * counted in shards on all cores, which gives the same counts as counting them one by one.
+     * @param instances The instances to learn from
+     */
+    abstract void update(List<Instance> instances);
+
+    /**
+     * Forgets a batch of instances the net has been trained on, e.g. one fold of a cross validation
+     * @param instances Some of the instances the net has been trained on
+     */
+    abstract void remove(List<Instance> instances);
+
+    /**
+     * Adds every instance of a columnar data set to the counts the net has been trained on
+     * @param data The instances to learn from
+     */
+    abstract void update(ColumnarDataset data);
+
+    /**
+     * Creates empty statistics of the kind this net is trained from
+     */
+    abstract SufficientStatistics newStatistics();
+
+    /**
+     * Adds counts gathered elsewhere, e.g. by another thread or over another shard of the data, to
+     * the counts the net has been trained on
+     * @param shard Statistics created by newStatistics and filled with the instances to learn from
+     */
+    abstract void merge(SufficientStatistics shard);
+
+    /**
+     * Forgets instances the net has been trained on, given as their counts
+     * @param shard Statistics created by newStatistics and filled with some of the instances the
+     * net has been trained on
+     */
+    abstract void subtract(SufficientStatistics shard);
+
+    /**
+     * Trains the net with the instances passed to it, discarding whatever it had been trained on
+     * before.
+     * @param instances The instances to train the net on
+     */
+    void train(List<Instance> instances) {
+        reset();
+        update(instances);
+    }
+
+    /**
+     * Trains the net with a columnar data set, discarding whatever it had been trained on before.
+     * The data is counted column by column.
+     * @param data The instances to train the net on
+     */
+    void train(ColumnarDataset data) {
+        reset();
+        update(data);
+    }
+
+    /**
+     * Trains the net with the rows of an ARFF file as they are read, discarding whatever it had
+     * been trained on before. Only the counts are kept, so memory does not grow with the file.
+     * @param reader The ARFF file, positioned after its header
+     */
+    void train(ArffReader reader) throws IOException {
+        reset();
+        reader.forEach(this::update);
+    }
+
+    /**
+     * Scores a whole set of instances, normalizing each instance only once. Large batches are
+     * split across cores; every row is written to its own slot so the result does not depend on
+     * how the work was split.
+     * @param instances The instances to classify
+     * @return The posterior of every instance and its argmax class code
+     */
+    Predictions classify(List<Instance> instances) {
+        Predictions predictions = new Predictions(instances.size());
+        IntStream rows = IntStream.range(0, instances.size());
+        if (instances.size() >= PARALLEL_THRESHOLD)
+            rows = rows.parallel();
+        rows.forEach(i -> {
+            double[] posterior = posterior(instances.get(i).features);
+            predictions.posteriors[i] = posterior;
+            predictions.labels[i] = argmax(posterior);
+        });
+        return predictions;
+    }
+
+    /**
+     * Returns the index of the largest probability, preferring the lowest index on ties
+     */
+    static int argmax(double[] probabilities) {
+        int best = 0;
+        for (int i = 1; i < probabilities.length; i++)
+            if (probabilities[i] > probabilities[best])
+                best = i;
+        return best;
+    }
+
+    /**
+     * Turns unnormalized log probabilities into probabilities that sum to one, in place. The
+     * largest term is factored out before exponentiating (log-sum-exp) so nothing underflows.
+     * @param logProbabilities Unnormalized log probability of each class
+     * @return The same array, now holding the normalized probabilities
+     */
+    static double[] normalizeLogProbabilities(double[] logProbabilities) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double logProbability: logProbabilities)
+            max = Math.max(max, logProbability);
+        double sum = 0.0;
+        for (int i = 0; i < logProbabilities.length; i++) {
+            logProbabilities[i] = Math.exp(logProbabilities[i] - max);
+            sum += logProbabilities[i];
+        }
+        for (int i = 0; i < logProbabilities.length; i++)
+            logProbabilities[i] /= sum;
+        return logProbabilities;
+    }
 
 }
@@ -0,0 +1,187 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Instances stored column by column: one packed column of value codes per feature and one of class
+ * codes. A column uses a byte per row when its feature has at most 256 values, a short when it has
+ * at most 65536 and an int otherwise, so a data set of nominal features takes about one byte per
+ * value instead of an Instance object and an int array per row. The columns are either arrays on
+ * the heap or direct buffers outside of it.
+ *
+ * Training counts a column at a time (see SufficientStatistics.add), reading the codes of a block
+ * of rows with read and counting them in a tight loop over plain int arrays.
+ */
+public class ColumnarDataset {
+
+    // Number of rows handed out by read at a time by the counting loops
+    static final int BLOCK_SIZE = 4096;
+
+    private final ArrayList<Feature> features;
+    private final boolean offHeap;
+    // Bytes per code of every column, the class column last
+    private final int[] widths;
+    // Every column as a byte[], short[] or int[], or a direct ByteBuffer when off the heap
+    private final Object[] columns;
+    private int size;
+    private int capacity;
+
+    /**
+     * Creates an empty data set
+     * @param features List of all the features
+     * @param numClasses Number of class values
+     * @param offHeap Whether to keep the columns in direct buffers outside of the heap
+     */
+    ColumnarDataset(ArrayList<Feature> features, int numClasses, boolean offHeap) {
+        this.features = features;
+        this.offHeap = offHeap;
+        this.widths = new int[features.size() + 1];
+        for (int i = 0; i < features.size(); i++)
+            widths[i] = width(features.get(i).cardinality());
+        widths[features.size()] = width(numClasses);
+        this.columns = new Object[widths.length];
+        this.capacity = 1024;
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = allocate(widths[i], capacity);
+    }
+
+    private static int width(int cardinality) {
+        return cardinality <= 1 << 8 ? 1 : cardinality <= 1 << 16 ? 2 : 4;
+    }
+
+    private Object allocate(int width, int rows) {
+        if (offHeap)
+            return ByteBuffer.allocateDirect(rows * width).order(ByteOrder.nativeOrder());
+        return width == 1 ? new byte[rows] : width == 2 ? new short[rows] : new int[rows];
+    }
+
+    /**
+     * Appends an instance, whose feature values must all be declared values of their features
+     * @param instance The instance to append
+     */
+    void add(Instance instance) {
+        if (size == capacity)
+            grow();
+        for (int i = 0; i < instance.features.length; i++) {
+            if (instance.features[i] == -1)
+                throw new IllegalArgumentException("Row " + size + " has a value that is not declared for "
+                        + features.get(i).featureName);
+            write(i, size, instance.features[i]);
+        }
+        write(features.size(), size, instance.classValue);
+        size++;
+    }
+
+    private void write(int column, int row, int code) {
+        if (offHeap) {
+            ByteBuffer buffer = (ByteBuffer) columns[column];
+            switch (widths[column]) {
+                case 1: buffer.put(row, (byte) code); break;
+                case 2: buffer.putShort(row * 2, (short) code); break;
+                default: buffer.putInt(row * 4, code);
+            }
+        } else {
+            switch (widths[column]) {
+                case 1: ((byte[]) columns[column])[row] = (byte) code; break;
+                case 2: ((short[]) columns[column])[row] = (short) code; break;
+                default: ((int[]) columns[column])[row] = code;
+            }
+        }
+    }
+
+    /**
+     * Doubles the capacity of every column
+     */
+    private void grow() {
+        if (capacity > Integer.MAX_VALUE / 8)
+            throw new IllegalStateException("A columnar data set holds at most " + capacity + " rows");
+        int newCapacity = capacity * 2;
+        for (int i = 0; i < columns.length; i++) {
+            Object column = allocate(widths[i], newCapacity);
+            if (offHeap) {
+                ByteBuffer old = ((ByteBuffer) columns[i]).duplicate();
+                old.clear();
+                ((ByteBuffer) column).put(old).clear();
+            } else {
+                System.arraycopy(columns[i], 0, column, 0, capacity);
+            }
+            columns[i] = column;
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Copies the codes of a feature for the rows [from, to) into out, starting at out[0]
+     * @param feature The index of the feature, or the number of features for the class codes
+     * @param from The first row
+     * @param to The row after the last one
+     * @param out Array of at least to - from codes
+     */
+    void read(int feature, int from, int to, int[] out) {
+        if (offHeap) {
+            ByteBuffer buffer = (ByteBuffer) columns[feature];
+            switch (widths[feature]) {
+                case 1:
+                    for (int i = from; i < to; i++)
+                        out[i - from] = buffer.get(i) & 0xff;
+                    break;
+                case 2:
+                    for (int i = from; i < to; i++)
+                        out[i - from] = buffer.getShort(i * 2) & 0xffff;
+                    break;
+                default:
+                    for (int i = from; i < to; i++)
+                        out[i - from] = buffer.getInt(i * 4);
+            }
+        } else {
+            switch (widths[feature]) {
+                case 1:
+                    byte[] bytes = (byte[]) columns[feature];
+                    for (int i = from; i < to; i++)
+                        out[i - from] = bytes[i] & 0xff;
+                    break;
+                case 2:
+                    short[] shorts = (short[]) columns[feature];
+                    for (int i = from; i < to; i++)
+                        out[i - from] = shorts[i] & 0xffff;
+                    break;
+                default:
+                    System.arraycopy(columns[feature], from, out, 0, to - from);
+            }
+        }
+    }
+
+    /**
+     * Returns a row as an instance
+     * @param row The index of the row
+     */
+    Instance instance(int row) {
+        int[] values = new int[features.size()];
+        int[] code = new int[1];
+        for (int i = 0; i < values.length; i++) {
+            read(i, row, row + 1, code);
+            values[i] = code[0];
+        }
+        read(features.size(), row, row + 1, code);
+        return new Instance(values, code[0]);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int numFeatures() {
+        return features.size();
+    }
+
+    /**
+     * Returns the number of bytes taken by the columns
+     */
+    long footprintBytes() {
+        long bytes = 0;
+        for (int width: widths)
+            bytes += (long) width * capacity;
+        return bytes;
+    }
+
+}
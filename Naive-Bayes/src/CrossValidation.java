@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * k-fold cross validation that counts the data only once. Instance i is put in fold i mod k and a
+ * single net is trained on all instances. The net of each fold is then obtained by taking the
+ * instances of the fold out of the counts, which gives exactly the counts of training on the other
+ * folds, and they are put back once the fold is scored. A TAN then only learns its tree again. The
+ * folds are scored one after the other, so only one copy of the counts is held, which for a TAN
+ * means a single pair table; counting and scoring each run on all cores.
+ */
+public class CrossValidation {
+
+    // Number of correctly classified instances and of instances in every fold
+    final int[] correct;
+    final int[] sizes;
+
+    private CrossValidation(int[] correct, int[] sizes) {
+        this.correct = correct;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Cross validates a net on a set of instances
+     * @param instances The instances to cross validate on
+     * @param numFolds Number of folds k, at least 2
+     * @param bn The net being validated, which is left trained on all instances
+     * @return The number of correctly classified instances of every fold
+     */
+    static CrossValidation run(List<Instance> instances, int numFolds, BayesNetwork bn) {
+        if (numFolds < 2 || numFolds > instances.size())
+            throw new IllegalArgumentException("Cannot split " + instances.size() + " instances into "
+                    + numFolds + " folds");
+        ArrayList<ArrayList<Instance>> folds = new ArrayList<>(numFolds);
+        for (int i = 0; i < numFolds; i++)
+            folds.add(new ArrayList<>(instances.size() / numFolds + 1));
+        for (int i = 0; i < instances.size(); i++)
+            folds.get(i % numFolds).add(instances.get(i));
+
+        // The only pass over all instances
+        try (Metrics.Span span = Metrics.phase("cv.count")) {
+            bn.train(instances);
+            span.rows(instances.size());
+        }
+
+        int[] correct = new int[numFolds];
+        int[] sizes = new int[numFolds];
+        try (Metrics.Span span = Metrics.phase("cv.folds")) {
+            for (int i = 0; i < numFolds; i++) {
+                ArrayList<Instance> fold = folds.get(i);
+                bn.remove(fold);
+                BayesNetwork.Predictions predictions = bn.classify(fold);
+                for (int j = 0; j < fold.size(); j++)
+                    if (predictions.labels[j] == fold.get(j).classValue)
+                        correct[i]++;
+                sizes[i] = fold.size();
+                bn.update(fold);
+            }
+            span.rows(instances.size());
+        }
+        return new CrossValidation(correct, sizes);
+    }
+
+    /**
+     * Returns the fraction of all instances that were classified correctly by the net of their fold
+     */
+    double accuracy() {
+        int totalCorrect = 0, total = 0;
+        for (int i = 0; i < correct.length; i++) {
+            totalCorrect += correct[i];
+            total += sizes[i];
+        }
+        return (double) totalCorrect / total;
+    }
+
+}
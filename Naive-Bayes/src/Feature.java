@@ -1,13 +1,122 @@
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class Feature {
 
     String featureName;
     ArrayList<String> allowedValues;
+    // Dictionary from each allowed value to its int code (its index in allowedValues)
+    private HashMap<String, Integer> valueToCode;
+    // The same dictionary keyed by the UTF-8 bytes of each value, so raw file bytes can be
+    // interned without building a String. Open addressing table of (code + 1), 0 for empty slots.
+    private byte[][] valueBytes;
+    private int[] byteTable;
+    // Number of buckets values are hashed into, or 0 if values are interned with the dictionary
+    final int buckets;
 
     Feature(String featureName, ArrayList<String> allowedValues) {
+        this(featureName, allowedValues, 0);
+    }
+
+    /**
+     * Creates a feature whose values are hashed into a fixed number of buckets instead of being
+     * interned with a dictionary. Any value can then be encoded, including values that are not in
+     * allowedValues, and the tables of the feature stay the same size however many values it has.
+     * @param featureName The name of the feature
+     * @param allowedValues The values declared for the feature, which may be empty
+     * @param buckets Number of buckets, or 0 to intern the allowed values with a dictionary
+     */
+    Feature(String featureName, ArrayList<String> allowedValues, int buckets) {
         this.featureName = featureName;
         this.allowedValues = allowedValues;
+        this.buckets = buckets;
+        if (buckets > 0)
+            return;
+        this.valueToCode = new HashMap<>();
+        for (int i = 0; i < allowedValues.size(); i++)
+            valueToCode.putIfAbsent(allowedValues.get(i), i);
+
+        this.valueBytes = new byte[allowedValues.size()][];
+        this.byteTable = new int[Integer.highestOneBit(Math.max(1, allowedValues.size()) * 2) * 2];
+        for (int i = 0; i < allowedValues.size(); i++) {
+            valueBytes[i] = allowedValues.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encode(valueBytes[i], 0, valueBytes[i].length) == -1)
+                byteTable[slot(valueBytes[i], 0, valueBytes[i].length)] = i + 1;
+        }
+    }
+
+    /**
+     * Interns a value of this feature into its int code
+     * @param value The value as it appears in the ARFF file
+     * @return The index of the value in allowedValues, or -1 if it is not an allowed value. For a
+     * hashed feature, the bucket of the value.
+     */
+    int encode(String value) {
+        if (buckets > 0) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            return bucket(bytes, 0, bytes.length);
+        }
+        Integer code = valueToCode.get(value);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Interns a value of this feature, given as the UTF-8 bytes bytes[from, to), into its int code
+     * @return The index of the value in allowedValues, or -1 if it is not an allowed value. For a
+     * hashed feature, the bucket of the value.
+     */
+    int encode(byte[] bytes, int from, int to) {
+        if (buckets > 0)
+            return bucket(bytes, from, to);
+        return byteTable[slot(bytes, from, to)] - 1;
+    }
+
+    /**
+     * Returns the slot of byteTable holding the given value, or the empty slot where it belongs
+     */
+    private int slot(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++)
+            hash = 31 * hash + bytes[i];
+        int mask = byteTable.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (byteTable[slot] != 0 && !equals(valueBytes[byteTable[slot] - 1], bytes, from, to))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of a value into a bucket. The hash is FNV-1a followed by the MurmurHash3
+     * finalizer, so it does not depend on the JVM and a saved model hashes values the same way when
+     * it is loaded again.
+     */
+    private int bucket(byte[] bytes, int from, int to) {
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; i++)
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (int) ((hash & 0xffffffffL) % buckets);
+    }
+
+    private static boolean equals(byte[] value, byte[] bytes, int from, int to) {
+        if (value.length != to - from)
+            return false;
+        for (int i = 0; i < value.length; i++)
+            if (value[i] != bytes[from + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the number of distinct codes this feature can take
+     */
+    int cardinality() {
+        return buckets > 0 ? buckets : allowedValues.size();
     }
 
 }
@@ -1,12 +1,20 @@
 public class Instance {
 
-    String[] features;
-    String classValue;
+    // Int codes of the feature values, as given by Feature.encode
+    int[] features;
+    // Int code of the class value, -1 if it is not one of the class values
+    int classValue;
+    // The class value as read, kept only if it is not one of the class values
+    String unknownClassValue;
 
-    Instance(String[] values) {
-        features = new String[values.length - 1];
-        System.arraycopy(values, 0, this.features, 0, values.length - 1);
-        this.classValue = values[values.length - 1];
+    Instance(int[] features, int classValue) {
+        this.features = features;
+        this.classValue = classValue;
+    }
+
+    Instance(int[] features, int classValue, String unknownClassValue) {
+        this(features, classValue);
+        this.unknownClassValue = unknownClassValue;
     }
 
 }
@@ -0,0 +1,223 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Records where the time of a run goes. Every phase, e.g. counting the training file or learning
+ * the tree of a TAN, is timed with a Span, and the wall time, the bytes allocated and the rows
+ * handled are added up per phase name. Recording is off unless enabled, in which case a span
+ * costs a few calls to the thread management bean, so spans belong around whole phases and not
+ * around single rows.
+ *
+ * Allocated bytes are measured per thread and summed over the threads alive when a span ends,
+ * counting threads started during the span from zero, so they include work a phase hands to the
+ * fork-join pool, but also anything other threads allocate at the same time. What a thread
+ * allocates before it exits within the span is lost with it, so the figure is a lower bound, but
+ * never negative. Phases may nest, e.g.
+ * a TAN learns its tree the first time it scores, and an outer phase then includes the inner one.
+ *
+ * The totals can be written as JSON and are exposed over JMX as bayes:type=Metrics.
+ */
+public class Metrics implements MetricsMXBean {
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static final Span DISABLED = new Span(null);
+    private static volatile boolean enabled;
+
+    // Totals per phase name, in the order the phases first ran
+    private final LinkedHashMap<String, Phase> phases = new LinkedHashMap<>();
+
+    /**
+     * Totals of all spans of one phase
+     */
+    public static class Phase {
+
+        private final String name;
+        private long calls;
+        private long wallNanos;
+        private long allocatedBytes;
+        private long rows;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        private Phase(Phase other) {
+            this.name = other.name;
+            this.calls = other.calls;
+            this.wallNanos = other.wallNanos;
+            this.allocatedBytes = other.allocatedBytes;
+            this.rows = other.rows;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * Returns the bytes allocated during the phase, or -1 if the JVM cannot measure them
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getRowsPerSecond() {
+            return wallNanos == 0 ? 0.0 : rows * 1e9 / wallNanos;
+        }
+
+    }
+
+    /**
+     * One run of a phase, recorded when it is closed
+     */
+    static class Span implements AutoCloseable {
+
+        private final String name;
+        private final long startNanos;
+        // Bytes allocated so far by every live thread, null if not recording or not measurable
+        private final Map<Long, Long> startBytes;
+        private long rows;
+
+        private Span(String name) {
+            this.name = name;
+            this.startBytes = name == null ? null : allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Adds to the number of rows handled in this span
+         * @param count Number of rows
+         */
+        void rows(long count) {
+            rows += count;
+        }
+
+        @Override
+        public void close() {
+            if (name == null)
+                return;
+            long wallNanos = System.nanoTime() - startNanos;
+            INSTANCE.record(name, wallNanos, allocatedSince(startBytes, allocatedBytes()), rows);
+        }
+
+    }
+
+    /**
+     * Starts recording phases and registers the metrics with the platform MBean server
+     */
+    static void enable() {
+        enabled = true;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+            if (allocation.isThreadAllocatedMemorySupported())
+                allocation.setThreadAllocatedMemoryEnabled(true);
+        }
+        try {
+            ObjectName name = new ObjectName("bayes:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MBean: " + e);
+        }
+    }
+
+    static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing a run of a phase. Use it in a try-with-resources statement so the span is
+     * recorded however the phase ends.
+     * @param name The name of the phase
+     * @return The span, which does nothing if recording is off
+     */
+    static Span phase(String name) {
+        return enabled ? new Span(name) : DISABLED;
+    }
+
+    private synchronized void record(String name, long wallNanos, long allocatedBytes, long rows) {
+        Phase phase = phases.computeIfAbsent(name, Phase::new);
+        phase.calls++;
+        phase.wallNanos += wallNanos;
+        phase.allocatedBytes = phase.allocatedBytes < 0 || allocatedBytes < 0 ? -1 : phase.allocatedBytes + allocatedBytes;
+        phase.rows += rows;
+    }
+
+    /**
+     * Returns the bytes allocated so far by every live thread, keyed by thread id, or null if the
+     * JVM cannot measure them
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        if (!allocation.isThreadAllocatedMemorySupported() || !allocation.isThreadAllocatedMemoryEnabled())
+            return null;
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = allocation.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++)
+            if (bytes[i] > 0)
+                allocated.put(ids[i], bytes[i]);
+        return allocated;
+    }
+
+    /**
+     * Returns the bytes the threads alive at the end allocated since the start, or -1 if either
+     * could not be measured
+     */
+    private static long allocatedSince(Map<Long, Long> start, Map<Long, Long> end) {
+        if (start == null || end == null)
+            return -1;
+        long total = 0;
+        for (Map.Entry<Long, Long> thread: end.entrySet())
+            total += Math.max(0, thread.getValue() - start.getOrDefault(thread.getKey(), 0L));
+        return total;
+    }
+
+    public synchronized List<Phase> getPhases() {
+        List<Phase> copy = new ArrayList<>();
+        for (Phase phase: phases.values())
+            copy.add(new Phase(phase));
+        return copy;
+    }
+
+    public String getJson() {
+        StringBuilder json = new StringBuilder("{\"phases\": [");
+        List<Phase> snapshot = getPhases();
+        for (int i = 0; i < snapshot.size(); i++) {
+            Phase phase = snapshot.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.ROOT,
+                    "  {\"name\": \"%s\", \"calls\": %d, \"wall_ms\": %.3f, \"allocated_bytes\": %d, \"rows\": %d, \"rows_per_second\": %.1f}",
+                    phase.getName(), phase.getCalls(), phase.getWallNanos() / 1e6, phase.getAllocatedBytes(),
+                    phase.getRows(), phase.getRowsPerSecond()));
+        }
+        return json.append("\n]}\n").toString();
+    }
+
+    public synchronized void reset() {
+        phases.clear();
+    }
+
+}
@@ -0,0 +1,23 @@
+import java.util.List;
+
+/**
+ * Management interface of Metrics, under the name bayes:type=Metrics
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns the totals of every phase recorded so far, in the order the phases first ran
+     */
+    List<Metrics.Phase> getPhases();
+
+    /**
+     * Returns the same summary that -metrics writes to a file
+     */
+    String getJson();
+
+    /**
+     * Forgets every phase recorded so far
+     */
+    void reset();
+
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Saves trained Naive Bayes and TAN nets in a compact binary format and loads them back, so a net
+ * can be queried without retraining. The file holds, in big-endian order:
+ * <pre>
+ * int magic, int version, byte type ('n' or 't')
+ * the class values and every feature with its values, each string as an int length and UTF-8 bytes
+ * (since version 2 every feature name is followed by its number of hash buckets, 0 if it is not
+ * hashed, and the values of hashed features are not stored)
+ * the log prior of every class, then the Naive Bayes log table of every feature as [value][class]
+ * for a TAN: the parent of every feature, then the log table of every feature with a parent
+ * </pre>
+ * Loading maps the file and copies the tables out of the mapping in bulk. A single mapping covers
+ * at most 2 GB, so larger model files are rejected.
+ */
+public class ModelFile {
+
+    private static final int MAGIC = 0x42415953;
+    static final int VERSION = 2;
+
+    /**
+     * Writes a trained net to a file
+     * @param filename The file to write to
+     * @param bn The trained net
+     * @param features List of all the features
+     * @param classValues List of all class values
+     */
+    static void save(String filename, BayesNetwork bn, ArrayList<Feature> features,
+                     ArrayList<String> classValues) throws IOException {
+        NaiveBayes naiveBayes = bn instanceof TAN ? ((TAN) bn).naiveBayes() : (NaiveBayes) bn;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(bn instanceof TAN ? 't' : 'n');
+
+            out.writeInt(classValues.size());
+            for (String classValue: classValues)
+                writeString(out, classValue);
+            out.writeInt(features.size());
+            for (Feature feature: features) {
+                writeString(out, feature.featureName);
+                out.writeInt(feature.buckets);
+                // A hashed feature is fully described by its buckets, however many values it has
+                ArrayList<String> values = feature.buckets > 0 ? new ArrayList<>() : feature.allowedValues;
+                out.writeInt(values.size());
+                for (String value: values)
+                    writeString(out, value);
+            }
+
+            for (double logProbability: naiveBayes.logProbabilityOfClass())
+                out.writeDouble(logProbability);
+            for (double[][] table: naiveBayes.logFeatureToProbability())
+                for (double[] row: table)
+                    for (double logProbability: row)
+                        out.writeDouble(logProbability);
+
+            if (bn instanceof TAN) {
+                TAN tan = (TAN) bn;
+                double[][] logTables = tan.compile();
+                for (int parent: tan.parents())
+                    out.writeInt(parent);
+                for (double[] table: logTables)
+                    if (table != null)
+                        for (double logProbability: table)
+                            out.writeDouble(logProbability);
+            }
+        }
+    }
+
+    /**
+     * Reads a net written by save. The features and class values stored in the file are added to
+     * the given lists, which must be empty.
+     * @param filename The file to read
+     * @param features Filled with all the features
+     * @param classValues Filled with all class values
+     * @return The net, ready to be queried
+     */
+    static BayesNetwork load(String filename, ArrayList<Feature> features,
+                             ArrayList<String> classValues) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(filename + " is larger than the 2 GB a model file may take");
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return read(filename, in, features, classValues);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException(filename + " is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * Reads a net from the mapped file, running into the end of the buffer or an invalid index
+     * if the file is truncated or corrupt
+     */
+    private static BayesNetwork read(String filename, ByteBuffer in, ArrayList<Feature> features,
+                                     ArrayList<String> classValues) throws IOException {
+        if (in.remaining() < 9 || in.getInt() != MAGIC)
+            throw new IOException(filename + " is not a Bayes model file");
+        int version = in.getInt();
+        if (version < 1 || version > VERSION)
+            throw new IOException(filename + " has model file version " + version + ", expected at most " + VERSION);
+        byte type = in.get();
+
+        int numClasses = in.getInt();
+        for (int i = 0; i < numClasses; i++)
+            classValues.add(readString(in));
+        int numFeatures = in.getInt();
+        for (int i = 0; i < numFeatures; i++) {
+            String featureName = readString(in);
+            int buckets = version >= 2 ? in.getInt() : 0;
+            ArrayList<String> allowedValues = new ArrayList<>();
+            int numValues = in.getInt();
+            for (int j = 0; j < numValues; j++)
+                allowedValues.add(readString(in));
+            features.add(new Feature(featureName, allowedValues, buckets));
+        }
+
+        double[] logProbabilityOfClass = readDoubles(in, numClasses);
+        double[][][] logFeatureToProbability = new double[numFeatures][][];
+        for (int i = 0; i < numFeatures; i++) {
+            logFeatureToProbability[i] = new double[features.get(i).cardinality()][];
+            for (int j = 0; j < logFeatureToProbability[i].length; j++)
+                logFeatureToProbability[i][j] = readDoubles(in, numClasses);
+        }
+        NaiveBayes naiveBayes = new NaiveBayes(classValues, features, logProbabilityOfClass, logFeatureToProbability);
+        if (type == 'n')
+            return naiveBayes;
+        if (type != 't')
+            throw new IOException(filename + " holds an unknown kind of model");
+
+        int[] parents = new int[numFeatures];
+        for (int i = 0; i < numFeatures; i++)
+            parents[i] = in.getInt();
+        double[][] logTables = new double[numFeatures][];
+        for (int i = 0; i < numFeatures; i++)
+            if (parents[i] != -1)
+                logTables[i] = readDoubles(in, features.get(parents[i]).cardinality()
+                        * features.get(i).cardinality() * numClasses);
+        return new TAN(classValues, features, naiveBayes, parents, logTables);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static double[] readDoubles(ByteBuffer in, int count) {
+        if (count > in.remaining() / Double.BYTES)
+            throw new BufferUnderflowException();
+        double[] values = new double[count];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + count * Double.BYTES);
+        return values;
+    }
+
+}
@@ -1,14 +1,23 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
 public class NaiveBayes extends BayesNetwork {
 
-    private HashMap<String, double[][]> featureToProbability;
     private ArrayList<Feature> features;
     private ArrayList<String> classValues;
 
-    HashMap<String, Double> probabilityOfClass;
-    HashMap<String, Integer> frequencyOfClass;
+    // Counts of the instances the net has been trained on
+    final SufficientStatistics statistics;
+
+    // Smoothed probabilities derived from the counts above, recomputed after the counts change.
+    // The version of the counts they were derived from, -1 before they are first derived.
+    private volatile long tablesVersion;
+    private double[] probabilityOfClass;
+    // Conditional probability tables indexed by [feature][value code][class code]
+    private double[][][] featureToProbability;
+    // Log-space copies of the tables above
+    private double[] logProbabilityOfClass;
+    private double[][][] logFeatureToProbability;
 
     /**
      * Constructor for the Naive Bayes net implementation
@@ -16,101 +25,234 @@ public class NaiveBayes extends BayesNetwork {
      * @param features List of all the features in the training set
      */
     NaiveBayes(ArrayList<String> classValues, ArrayList<Feature> features) {
-        this.probabilityOfClass = new HashMap<>();
-        this.frequencyOfClass = new HashMap<>();
-        this.featureToProbability = new HashMap<>();
+        this(classValues, features, new SufficientStatistics(features, classValues.size(), false));
+    }
+
+    /**
+     * Constructor for a Naive Bayes net whose counts are kept in the given statistics, which may
+     * count more than the net needs
+     * @param classValues List of all class values in the training set
+     * @param features List of all the features in the training set
+     * @param statistics Empty statistics for the given features and class values
+     */
+    NaiveBayes(ArrayList<String> classValues, ArrayList<Feature> features, SufficientStatistics statistics) {
         this.features = features;
         this.classValues = classValues;
-        for (Feature feature: features)
-            featureToProbability.put(feature.featureName,
-                    new double[feature.allowedValues.size()][classValues.size()]);
+        this.statistics = statistics;
+        this.tablesVersion = -1;
+    }
+
+    /**
+     * Constructor for a Naive Bayes net that was trained elsewhere and only holds its log tables,
+     * e.g. one loaded from a model file. It can be queried but not trained any further.
+     * @param classValues List of all class values
+     * @param features List of all the features
+     * @param logProbabilityOfClass The log prior of each class code
+     * @param logFeatureToProbability The log conditional tables indexed by [feature][value code][class code]
+     */
+    NaiveBayes(ArrayList<String> classValues, ArrayList<Feature> features,
+               double[] logProbabilityOfClass, double[][][] logFeatureToProbability) {
+        this.features = features;
+        this.classValues = classValues;
+        this.statistics = null;
+        this.logProbabilityOfClass = logProbabilityOfClass;
+        this.logFeatureToProbability = logFeatureToProbability;
+        this.probabilityOfClass = new double[logProbabilityOfClass.length];
+        for (int i = 0; i < probabilityOfClass.length; i++)
+            probabilityOfClass[i] = Math.exp(logProbabilityOfClass[i]);
+        this.featureToProbability = new double[logFeatureToProbability.length][][];
+        for (int i = 0; i < featureToProbability.length; i++) {
+            featureToProbability[i] = new double[logFeatureToProbability[i].length][classValues.size()];
+            for (int j = 0; j < featureToProbability[i].length; j++)
+                for (int k = 0; k < classValues.size(); k++)
+                    featureToProbability[i][j][k] = Math.exp(logFeatureToProbability[i][j][k]);
+        }
+        this.tablesVersion = version();
     }
 
     /**
      * Calculates the probability of a given class in the naive bayes net given feature values
-     * @param featureList List of features values for the instance
-     * @param classValue The class value for which the probability needs to be calculated
+     * @param featureList Codes of the feature values for the instance
+     * @param classValue The class code for which the probability needs to be calculated
      * @return The probability of a class given features values
      */
-    double probabilityClassGivenFeatures(String[] featureList, String classValue) {
-        double numerator = probabilityOfClass.get(classValue);
-        double denominator = 0.0;
-        for (int i = 0; i < featureList.length; i++)
-            numerator *= probabilityFeatureGivenClass(features.get(i).featureName, featureList[i], classValue);
-
-        for (String classVal: classValues) {
-            double product = probabilityOfClass.get(classVal);
-            for (int i = 0; i < featureList.length; i++)
-                product *= probabilityFeatureGivenClass(features.get(i).featureName, featureList[i], classVal);
-            denominator += product;
+    double probabilityClassGivenFeatures(int[] featureList, int classValue) {
+        return posterior(featureList)[classValue];
+    }
+
+    /**
+     * Calculates the probability of every class given the feature values in a single pass over the
+     * features. The products are accumulated as sums of logs and normalized with log-sum-exp, so
+     * they do not underflow when there are many features. Values that were not declared for a
+     * feature carry no evidence and are skipped.
+     * @param featureList Codes of the feature values for the instance
+     * @return The probability of each class code given the feature values
+     */
+    double[] posterior(int[] featureList) {
+        if (stale())
+            updateProbabilities();
+        double[] logPosterior = logProbabilityOfClass.clone();
+        for (int i = 0; i < featureList.length; i++) {
+            if (featureList[i] == -1)
+                continue;
+            double[] logConditional = logFeatureToProbability[i][featureList[i]];
+            for (int j = 0; j < logPosterior.length; j++)
+                logPosterior[j] += logConditional[j];
         }
-        return (numerator/denominator);
+        return normalizeLogProbabilities(logPosterior);
     }
 
     /**
      * Calculates the probability of a feature having a particular value given the class value of the example
-     * @param featureName The feature for which the probability is being calculated
-     * @param featureValue The value of that feature
-     * @param classValue The class value of the example based on which the probability is being calculated
+     * @param feature The index of the feature for which the probability is being calculated
+     * @param featureValue The code of the value of that feature
+     * @param classValue The class code of the example based on which the probability is being calculated
      * @return The probability of the feature having that feature value given the class
      */
-    double probabilityFeatureGivenClass(String featureName, String featureValue, String classValue) {
-        int i = -1, j = -1;
-        for (Feature feature: features) {
-            if (featureName.equals(feature.featureName)) {
-                i = feature.allowedValues.indexOf(featureValue);
-                j = classValues.indexOf(classValue);
-            }
-        }
-        if (i == -1)
+    double probabilityFeatureGivenClass(int feature, int featureValue, int classValue) {
+        if (featureValue == -1)
             return -1.0;
-        return featureToProbability.get(featureName)[i][j];
+        if (stale())
+            updateProbabilities();
+        return featureToProbability[feature][featureValue][classValue];
+    }
+
+    /**
+     * Returns the smoothed prior probability of a class
+     * @param classValue The class code
+     * @return The probability of the class
+     */
+    double probabilityOfClass(int classValue) {
+        if (stale())
+            updateProbabilities();
+        return probabilityOfClass[classValue];
+    }
+
+    /**
+     * Returns the number of instances the net has been trained on
+     */
+    int numInstances() {
+        return trainableStatistics().numInstances;
+    }
+
+    /**
+     * Returns the log prior of each class code
+     */
+    double[] logProbabilityOfClass() {
+        if (stale())
+            updateProbabilities();
+        return logProbabilityOfClass;
     }
 
     /**
-     * Trains the given Naive Bayes net with the instances passed to it.
-     * Calculates all conditional and class probabilities and stores them in the data structures of
-     * the current object.
-     * @param instances The instances to train the naive bayes net on
+     * Returns the log conditional tables indexed by [feature][value code][class code]
      */
-    void train(ArrayList<Instance> instances) {
+    double[][][] logFeatureToProbability() {
+        if (stale())
+            updateProbabilities();
+        return logFeatureToProbability;
+    }
 
-        // Initialize all class probabilities to zero
-        for (int i = 0; i < bayes.classValues.size(); i++)
-            frequencyOfClass.put(classValues.get(i), 0);
+    void reset() {
+        trainableStatistics().clear();
+        modified();
+    }
 
-        // For each instance, initializes the probability of each class and the conditional
-        // probabilities for a feature given class
-        for (Instance instance: instances) {
+    void update(Instance instance) {
+        trainableStatistics().add(instance);
+        modified();
+    }
 
-            // Add the total number of each class occurrence
-            frequencyOfClass.put(instance.classValue, frequencyOfClass.get(instance.classValue) + 1);
+    void update(List<Instance> instances) {
+        trainableStatistics().add(instances);
+        modified();
+    }
 
-            // Populate feature to probability tables with feature to number of occurrences
-            for (int i = 0; i < instance.features.length; i++) {
-                double[][] conditionalProbabilities =
-                        featureToProbability.get(features.get(i).featureName);
-                conditionalProbabilities[features.get(i).allowedValues.indexOf(instance.features[i])][classValues.indexOf(instance.classValue)]++;
-                featureToProbability.put(features.get(i).featureName, conditionalProbabilities);
-            }
+    void remove(List<Instance> instances) {
+        trainableStatistics().remove(instances);
+        modified();
+    }
 
-        }
+    void update(ColumnarDataset data) {
+        trainableStatistics().add(data);
+        modified();
+    }
+
+    SufficientStatistics newStatistics() {
+        return new SufficientStatistics(features, classValues.size(), trainableStatistics().pairCounts != null);
+    }
+
+    void merge(SufficientStatistics shard) {
+        trainableStatistics().merge(shard);
+        modified();
+    }
+
+    void subtract(SufficientStatistics shard) {
+        trainableStatistics().subtract(shard);
+        modified();
+    }
+
+    /**
+     * Returns whether the counts have changed since the probabilities were derived from them
+     */
+    private boolean stale() {
+        return tablesVersion != version();
+    }
 
-        for (Feature feature: features) {
-            double[][] conditionalProbabilities = featureToProbability.get(feature.featureName);
-            for (int i = 0; i < conditionalProbabilities.length; i++) {
-                for (int j = 0; j < conditionalProbabilities[i].length; j++) {
-                    // P(X=x|Y) = [(# of X=x) + 1] / [(# of Y) + (# of X)]
-                    conditionalProbabilities[i][j] = (conditionalProbabilities[i][j] + 1) /
-                            (frequencyOfClass.get(classValues.get(j))
-                                    + conditionalProbabilities.length);
+    /**
+     * Returns the counts the net is trained from, failing if it only holds loaded tables
+     */
+    private SufficientStatistics trainableStatistics() {
+        if (statistics == null)
+            throw new IllegalStateException("This Naive Bayes net was loaded without its counts and cannot be trained");
+        return statistics;
+    }
+
+    /**
+     * Calculates all conditional and class probabilities from the current counts and stores them in
+     * the data structures of the current object. The tables are marked as derived from the
+     * version of the counts read before deriving them, so counts that change meanwhile leave the
+     * net stale and the tables are derived again on the next query.
+     */
+    @SuppressWarnings("try")
+    private synchronized void updateProbabilities() {
+        long version = version();
+        if (tablesVersion == version)
+            return;
+        try (Metrics.Span span = Metrics.phase("train.probabilities")) {
+            int numClasses = classValues.size();
+            int[] frequencyOfClass = statistics.classCounts;
+            int[][] featureClassCounts = statistics.featureClassCounts;
+
+            double[][][] conditionalTables = new double[features.size()][][];
+            double[][][] logConditionalTables = new double[features.size()][][];
+            for (int i = 0; i < features.size(); i++) {
+                int numValues = features.get(i).cardinality();
+                conditionalTables[i] = new double[numValues][numClasses];
+                logConditionalTables[i] = new double[numValues][numClasses];
+                for (int j = 0; j < numValues; j++) {
+                    for (int k = 0; k < numClasses; k++) {
+                        // P(X=x|Y) = [(# of X=x) + 1] / [(# of Y) + (# of X)]
+                        conditionalTables[i][j][k] = (featureClassCounts[i][j * numClasses + k] + 1.0) /
+                                (frequencyOfClass[k] + numValues);
+                        logConditionalTables[i][j][k] = Math.log(conditionalTables[i][j][k]);
+                    }
                 }
             }
-        }
 
-        for (String classValue: classValues)
-            probabilityOfClass.put(classValue, (frequencyOfClass.get(classValue) + 1.0) / (double)(instances.size() + classValues.size()));
+            double[] classProbabilities = new double[numClasses];
+            double[] logClassProbabilities = new double[numClasses];
+            for (int i = 0; i < numClasses; i++) {
+                classProbabilities[i] = (frequencyOfClass[i] + 1.0) / (double)(statistics.numInstances + numClasses);
+                logClassProbabilities[i] = Math.log(classProbabilities[i]);
+            }
 
+            featureToProbability = conditionalTables;
+            logFeatureToProbability = logConditionalTables;
+            probabilityOfClass = classProbabilities;
+            logProbabilityOfClass = logClassProbabilities;
+        }
+        tablesVersion = version;
     }
 
 }
@@ -1,18 +1,16 @@
 import java.util.ArrayList;
-import java.util.Comparator;
 
 public class Node {
 
     Feature node;
+    // Index of the feature in the feature list, which is also its column in each Instance
+    int index;
     Node parent;
     ArrayList<Node> children;
-    double key;
 
-    static Comparator<Node> comparator = (o1, o2) -> (o1.key > o2.key ? 1 : -1);
-
-    Node (Feature node) {
-        this.key = Double.MAX_VALUE;
+    Node (Feature node, int index) {
         this.node = node;
+        this.index = index;
         children = new ArrayList<>();
         parent = null;
     }
@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Stores how often each pair of feature values occurs together with each class, i.e. the
+ * counts of (X1 = x1, X2 = x2, Y = y) used to train a TAN. Only pairs of distinct features with
+ * feature1 < feature2 are kept, since the table is symmetric and the diagonal is never needed.
+ * Every count has a fixed position in one flat index space, which is backed either by a dense
+ * int array or, when that would not fit in memory, by a hash table holding only non-zero cells.
+ */
+public abstract class PairCounts {
+
+    // Upper bound on the memory a dense table may use before the sparse table is chosen instead
+    static long maxDenseBytes = 1L << 30;
+
+    final int numFeatures;
+    final int numClasses;
+    // Number of values of each feature
+    final int[] cardinalities;
+    // Position of the first count of each feature pair (feature1 < feature2), indexed by
+    // [feature1 * numFeatures + feature2]
+    final long[] pairOffsets;
+    // Total number of counts in the index space
+    final long size;
+
+    private PairCounts(ArrayList<Feature> features, int numClasses) {
+        this.numFeatures = features.size();
+        this.numClasses = numClasses;
+        this.cardinalities = new int[numFeatures];
+        for (int i = 0; i < numFeatures; i++)
+            cardinalities[i] = features.get(i).cardinality();
+        this.pairOffsets = new long[numFeatures * numFeatures];
+        long offset = 0;
+        for (int i = 0; i < numFeatures; i++)
+            for (int j = i + 1; j < numFeatures; j++) {
+                pairOffsets[i * numFeatures + j] = offset;
+                offset += (long) cardinalities[i] * cardinalities[j] * numClasses;
+            }
+        this.size = offset;
+    }
+
+    /**
+     * Creates an empty table for the given features, choosing the dense layout whenever its
+     * footprint is below maxDenseBytes and half of the maximum heap size
+     * @param features List of all the features
+     * @param numClasses Number of class values
+     * @return An empty table
+     */
+    static PairCounts create(ArrayList<Feature> features, int numClasses) {
+        long denseBytes = denseFootprintBytes(features, numClasses);
+        long limit = Math.min(maxDenseBytes, Runtime.getRuntime().maxMemory() / 2);
+        if (denseBytes <= limit && denseBytes / Integer.BYTES < Integer.MAX_VALUE - 8)
+            return new Dense(features, numClasses);
+        System.err.println("Pairwise count table would need " + (denseBytes >> 20)
+                + " MB as a dense array, using a sparse table instead");
+        return new Sparse(features, numClasses);
+    }
+
+    /**
+     * Calculates how many bytes the dense table for the given features would take, without
+     * allocating it
+     * @param features List of all the features
+     * @param numClasses Number of class values
+     * @return The size of the count array plus the pair offsets in bytes
+     */
+    static long denseFootprintBytes(ArrayList<Feature> features, int numClasses) {
+        long cells = 0;
+        for (int i = 0; i < features.size(); i++)
+            for (int j = i + 1; j < features.size(); j++)
+                cells += (long) features.get(i).cardinality() * features.get(j).cardinality() * numClasses;
+        return cells * Integer.BYTES + (long) features.size() * features.size() * Long.BYTES;
+    }
+
+    /**
+     * Returns the position of a count in the flat index space. The two features may be given in
+     * either order but must be different.
+     */
+    long index(int feature1, int value1, int feature2, int value2, int classValue) {
+        if (feature1 > feature2)
+            return index(feature2, value2, feature1, value1, classValue);
+        if (feature1 == feature2)
+            throw new IllegalArgumentException("Pair counts are only kept for two different features");
+        return pairOffsets[feature1 * numFeatures + feature2]
+                + ((long) value1 * cardinalities[feature2] + value2) * numClasses + classValue;
+    }
+
+    /**
+     * Counts one instance, i.e. every pair of its feature values together with its class
+     * @param instance The instance to count
+     */
+    void add(Instance instance) {
+        int[] values = instance.features;
+        for (int i = 0; i < numFeatures; i++)
+            for (int j = i + 1; j < numFeatures; j++)
+                increment(index(i, values[i], j, values[j], instance.classValue));
+    }
+
+    /**
+     * Counts a list of instances. For a dense table the pairs of different first features fill
+     * disjoint parts of the array, so they are spread over the common fork-join pool.
+     * @param instances The instances to count
+     * @param sign 1 to add the instances, -1 to take instances counted before away again
+     */
+    void add(List<Instance> instances, int sign) {
+        IntStream features = IntStream.range(0, numFeatures);
+        if (this instanceof Dense)
+            features = features.parallel();
+        features.forEach(feature1 -> {
+            for (Instance instance: instances) {
+                int[] values = instance.features;
+                for (int feature2 = feature1 + 1; feature2 < numFeatures; feature2++)
+                    add(index(feature1, values[feature1], feature2, values[feature2], instance.classValue), sign);
+            }
+        });
+    }
+
+    /**
+     * Counts every instance of a columnar data set, one pair of columns at a time. For a dense
+     * table the pairs of different first features fill disjoint parts of the array, so they are
+     * spread over the common fork-join pool.
+     * @param data The instances to count
+     */
+    void add(ColumnarDataset data) {
+        IntStream features = IntStream.range(0, numFeatures);
+        if (this instanceof Dense)
+            features = features.parallel();
+        features.forEach(feature1 -> {
+            int[] values1 = new int[ColumnarDataset.BLOCK_SIZE];
+            int[] values2 = new int[ColumnarDataset.BLOCK_SIZE];
+            int[] classes = new int[ColumnarDataset.BLOCK_SIZE];
+            for (int from = 0; from < data.size(); from += values1.length) {
+                int to = Math.min(data.size(), from + values1.length);
+                data.read(feature1, from, to, values1);
+                data.read(numFeatures, from, to, classes);
+                for (int feature2 = feature1 + 1; feature2 < numFeatures; feature2++) {
+                    data.read(feature2, from, to, values2);
+                    addPair(feature1, values1, feature2, values2, classes, to - from);
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts the value pairs of feature1 < feature2 and the classes of a block of instances
+     * @param length Number of instances in the block
+     */
+    void addPair(int feature1, int[] values1, int feature2, int[] values2, int[] classes, int length) {
+        long offset = pairOffsets[feature1 * numFeatures + feature2];
+        int cardinality2 = cardinalities[feature2];
+        for (int i = 0; i < length; i++)
+            increment(offset + ((long) values1[i] * cardinality2 + values2[i]) * numClasses + classes[i]);
+    }
+
+    /**
+     * Returns the number of instances with feature1 = value1, feature2 = value2 and the given class
+     */
+    int get(int feature1, int value1, int feature2, int value2, int classValue) {
+        return get(index(feature1, value1, feature2, value2, classValue));
+    }
+
+    /**
+     * Sets every count back to zero
+     */
+    abstract void clear();
+
+    /**
+     * Adds the counts of other to these counts. Both tables must have been created for the same
+     * features, but may use different layouts.
+     * @param other Counts gathered over some other instances
+     */
+    void merge(PairCounts other) {
+        other.addTo(this, 1);
+    }
+
+    /**
+     * Takes the counts of other away from these counts, where other counted a subset of the
+     * instances these counts were gathered over
+     * @param other Counts gathered over some of the same instances
+     */
+    void subtract(PairCounts other) {
+        other.addTo(this, -1);
+    }
+
+    /**
+     * Adds every non-zero count of this table, multiplied by sign, to target
+     */
+    abstract void addTo(PairCounts target, int sign);
+
+    abstract void increment(long index);
+
+    abstract void add(long index, int count);
+
+    abstract int get(long index);
+
+    /**
+     * Returns the number of bytes currently used by the table
+     */
+    abstract long footprintBytes();
+
+    /**
+     * All counts in one int array
+     */
+    static class Dense extends PairCounts {
+
+        private final int[] counts;
+
+        Dense(ArrayList<Feature> features, int numClasses) {
+            super(features, numClasses);
+            this.counts = new int[(int) size];
+        }
+
+        void clear() {
+            Arrays.fill(counts, 0);
+        }
+
+        void addTo(PairCounts target, int sign) {
+            if (target instanceof Dense) {
+                int[] targetCounts = ((Dense) target).counts;
+                for (int i = 0; i < counts.length; i++)
+                    targetCounts[i] += sign * counts[i];
+            } else {
+                for (int i = 0; i < counts.length; i++)
+                    if (counts[i] != 0)
+                        target.add(i, sign * counts[i]);
+            }
+        }
+
+        void addPair(int feature1, int[] values1, int feature2, int[] values2, int[] classes, int length) {
+            int offset = (int) pairOffsets[feature1 * numFeatures + feature2];
+            int cardinality2 = cardinalities[feature2];
+            for (int i = 0; i < length; i++)
+                counts[offset + (values1[i] * cardinality2 + values2[i]) * numClasses + classes[i]]++;
+        }
+
+        void increment(long index) {
+            counts[(int) index]++;
+        }
+
+        void add(long index, int count) {
+            counts[(int) index] += count;
+        }
+
+        int get(long index) {
+            return counts[(int) index];
+        }
+
+        long footprintBytes() {
+            return (long) counts.length * Integer.BYTES + (long) pairOffsets.length * Long.BYTES;
+        }
+
+    }
+
+    /**
+     * Only the non-zero counts, in an open addressing hash table keyed by their index
+     */
+    static class Sparse extends PairCounts {
+
+        private static final long EMPTY = -1L;
+
+        private long[] keys;
+        private int[] counts;
+        private int occupied;
+
+        Sparse(ArrayList<Feature> features, int numClasses) {
+            super(features, numClasses);
+            clear();
+        }
+
+        void clear() {
+            keys = new long[1 << 16];
+            counts = new int[keys.length];
+            occupied = 0;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * Returns the slot holding the given index, or the empty slot where it would be inserted
+         */
+        private int slot(long index) {
+            int mask = keys.length - 1;
+            long h = index * 0x9E3779B97F4A7C15L;
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != index)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        void addTo(PairCounts target, int sign) {
+            for (int i = 0; i < keys.length; i++)
+                if (keys[i] != EMPTY)
+                    target.add(keys[i], sign * counts[i]);
+        }
+
+        void increment(long index) {
+            add(index, 1);
+        }
+
+        void add(long index, int count) {
+            int slot = slot(index);
+            if (keys[slot] == EMPTY) {
+                if (2 * (occupied + 1) > keys.length) {
+                    grow();
+                    slot = slot(index);
+                }
+                keys[slot] = index;
+                occupied++;
+            }
+            counts[slot] += count;
+        }
+
+        int get(long index) {
+            int slot = slot(index);
+            return keys[slot] == EMPTY ? 0 : counts[slot];
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[keys.length];
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+        }
+
+        long footprintBytes() {
+            return (long) keys.length * (Long.BYTES + Integer.BYTES) + (long) pairOffsets.length * Long.BYTES;
+        }
+
+    }
+
+}
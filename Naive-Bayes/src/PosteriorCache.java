@@ -0,0 +1,174 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bayes net that remembers the posteriors of the most recently scored feature vectors, so rows
+ * that repeat are only scored once. It answers queries for another net and passes training on to
+ * it unchanged.
+ *
+ * The cache is split into stripes by the hash of the vector, each a LinkedHashMap in access order
+ * that evicts its least recently used entry and is locked on its own, so concurrent scoring
+ * threads rarely wait for each other. Every stripe remembers the version of the net its entries
+ * were computed under and drops them all once the net has been trained any further or reset.
+ * Cached posteriors are shared between all callers and must not be modified.
+ */
+public class PosteriorCache extends BayesNetwork {
+
+    private static final int NUM_STRIPES = 16;
+
+    private final BayesNetwork bn;
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * Feature vector used as a cache key, with its hash computed once
+     */
+    private static class Key {
+
+        final int[] featureList;
+        final int hash;
+
+        Key(int[] featureList) {
+            this.featureList = featureList;
+            this.hash = Arrays.hashCode(featureList);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(featureList, ((Key) other).featureList);
+        }
+
+    }
+
+    /**
+     * One stripe of the cache, only used while holding its lock
+     */
+    private static class Stripe extends LinkedHashMap<Key, double[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        // Version of the net the entries were computed under
+        long version;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+            return size() > capacity;
+        }
+
+    }
+
+    /**
+     * Puts a cache in front of a net
+     * @param bn The net that computes the posteriors
+     * @param capacity Largest number of feature vectors kept
+     */
+    PosteriorCache(BayesNetwork bn, int capacity) {
+        this.bn = bn;
+        this.stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(Math.max(1, (capacity + NUM_STRIPES - 1) / NUM_STRIPES));
+            stripes[i].version = bn.version();
+        }
+    }
+
+    double probabilityClassGivenFeatures(int[] featureList, int classValue) {
+        return posterior(featureList)[classValue];
+    }
+
+    /**
+     * Returns the cached posterior of the feature vector, scoring it with the net on a miss
+     * @param featureList Codes of the feature values for the instance
+     * @return The probability of each class code given the feature values, not to be modified
+     */
+    double[] posterior(int[] featureList) {
+        Key key = new Key(featureList);
+        Stripe stripe = stripes[(key.hash ^ (key.hash >>> 16)) & (NUM_STRIPES - 1)];
+        long version = bn.version();
+        synchronized (stripe) {
+            if (stripe.version != version) {
+                stripe.clear();
+                stripe.version = version;
+            }
+            double[] posterior = stripe.get(key);
+            if (posterior != null) {
+                hits.increment();
+                return posterior;
+            }
+        }
+        misses.increment();
+        double[] posterior = bn.posterior(featureList);
+        synchronized (stripe) {
+            // Only keep the answer if the net has not changed while it was being computed
+            if (stripe.version == version && bn.version() == version)
+                stripe.put(new Key(featureList.clone()), posterior);
+        }
+        return posterior;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the fraction of lookups answered from the cache
+     */
+    double hitRate() {
+        long hits = hits(), lookups = hits + misses();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    long version() {
+        return bn.version();
+    }
+
+    void reset() {
+        bn.reset();
+    }
+
+    void update(Instance instance) {
+        bn.update(instance);
+    }
+
+    void update(List<Instance> instances) {
+        bn.update(instances);
+    }
+
+    void remove(List<Instance> instances) {
+        bn.remove(instances);
+    }
+
+    void update(ColumnarDataset data) {
+        bn.update(data);
+    }
+
+    SufficientStatistics newStatistics() {
+        return bn.newStatistics();
+    }
+
+    void merge(SufficientStatistics shard) {
+        bn.merge(shard);
+    }
+
+    void subtract(SufficientStatistics shard) {
+        bn.subtract(shard);
+    }
+
+}
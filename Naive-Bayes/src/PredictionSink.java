@@ -0,0 +1,299 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes predictions to a channel in one of three formats:
+ * <pre>
+ * TEXT    predicted class, actual class and the probability of the predicted class, separated by
+ *         spaces, with the probability written like DecimalFormat("#.############")
+ * CSV     a header, then the predicted class, the actual class and the probability of every class
+ * BINARY  int magic, int number of classes, then per row the int predicted and actual class codes
+ *         and the double probability of every class, all big-endian
+ * </pre>
+ * An actual class that is not one of the class values is written as read in the text formats, or
+ * as ? if it is not known, and as class code -1 in the binary format.
+ * Rows are written into large direct buffers, and full buffers are handed to a background thread
+ * that writes them to the channel while the next buffer is being filled. Numbers are formatted
+ * straight into the buffer, so writing a row allocates nothing.
+ */
+public class PredictionSink implements Closeable {
+
+    enum Format { TEXT, CSV, BINARY }
+
+    static final int BINARY_MAGIC = 0x42505244;
+
+    private static final int BUFFER_SIZE = 1 << 22;
+    private static final int NUM_BUFFERS = 3;
+    // Probabilities are rounded to this many decimals, like DecimalFormat("#.############")
+    private static final int DECIMALS = 12;
+    private static final long SCALE = 1000000000000L;
+    // Largest value formatted without DecimalFormat, so the scaled value stays below 2^53
+    private static final double MAX_FAST_VALUE = 1000.0;
+    // Most bytes a number takes when formatted without DecimalFormat
+    private static final int MAX_FAST_NUMBER_BYTES = 4 + DECIMALS;
+    // Halves of SCALE for the error free product of Dekker and Veltkamp
+    private static final double SCALE_HIGH, SCALE_LOW;
+
+    static {
+        double c = 134217729.0 * SCALE;
+        SCALE_HIGH = c - (c - SCALE);
+        SCALE_LOW = SCALE - SCALE_HIGH;
+    }
+
+    private final WritableByteChannel channel;
+    private final Format format;
+    private final byte[][] classNames;
+    private final int numClasses;
+    private final int maxRowBytes;
+    private final char decimalSeparator;
+    // Used for numbers that are not probabilities, and for all numbers if the decimal separator is
+    // not an ASCII character
+    private final DecimalFormat fallback;
+
+    private final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+    private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(NUM_BUFFERS);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private final Thread writer;
+    private volatile IOException failure;
+    private ByteBuffer buffer;
+
+    /**
+     * Creates a sink and starts its writer thread. The channel is not closed by the sink.
+     * @param channel The channel to write to, e.g. a file or standard output
+     * @param format The format of the rows
+     * @param classValues List of all class values
+     */
+    PredictionSink(WritableByteChannel channel, Format format, ArrayList<String> classValues) throws IOException {
+        this.channel = channel;
+        this.format = format;
+        this.numClasses = classValues.size();
+        this.classNames = new byte[numClasses][];
+        int longestName = 0;
+        for (int i = 0; i < numClasses; i++) {
+            classNames[i] = name(classValues.get(i));
+            longestName = Math.max(longestName, classNames[i].length);
+        }
+        // Text rows carry one probability, CSV rows one per class, plus separators
+        if (format == Format.BINARY)
+            this.maxRowBytes = 2 * Integer.BYTES + numClasses * Double.BYTES;
+        else
+            this.maxRowBytes = 2 * longestName + (format == Format.TEXT ? 1 : numClasses) * (MAX_FAST_NUMBER_BYTES + 1) + 3;
+        // Text output follows the default locale, like the DecimalFormat it replaces
+        DecimalFormatSymbols symbols = format == Format.TEXT
+                ? DecimalFormatSymbols.getInstance() : DecimalFormatSymbols.getInstance(Locale.ROOT);
+        this.decimalSeparator = symbols.getDecimalSeparator();
+        this.fallback = new DecimalFormat("#.############", symbols);
+
+        for (int i = 0; i < NUM_BUFFERS; i++)
+            free.add(ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, maxRowBytes)));
+        this.buffer = free.remove();
+        this.writer = new Thread(this::writeBuffers, "prediction-writer");
+        writer.setDaemon(true);
+        writer.start();
+        writeHeader(classValues);
+    }
+
+    /**
+     * Returns the bytes of a class value as written in the rows, quoted if needed in CSV
+     */
+    private byte[] name(String value) {
+        if (format == Format.CSV && (value.indexOf(',') >= 0 || value.indexOf('"') >= 0))
+            value = "\"" + value.replace("\"", "\"\"") + "\"";
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writeHeader(ArrayList<String> classValues) throws IOException {
+        if (format == Format.BINARY) {
+            buffer.putInt(BINARY_MAGIC);
+            buffer.putInt(numClasses);
+        } else if (format == Format.CSV) {
+            StringBuilder header = new StringBuilder("predicted,actual");
+            for (byte[] name: classNames)
+                header.append(',').append(new String(name, StandardCharsets.UTF_8));
+            putBytes(header.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Writes one prediction
+     * @param predicted The predicted class code
+     * @param actual The actual class code, -1 if the actual class is not one of the class values
+     * @param unknownActual The actual class value as read when actual is -1, or null if not known
+     * @param posterior The probability of every class code
+     */
+    void write(int predicted, int actual, String unknownActual, double[] posterior) throws IOException {
+        if (buffer.remaining() < maxRowBytes)
+            handOff();
+        switch (format) {
+            case TEXT:
+                buffer.put(classNames[predicted]).put((byte) ' ');
+                putActual(actual, unknownActual);
+                buffer.put((byte) ' ');
+                putNumber(posterior[predicted]);
+                break;
+            case CSV:
+                buffer.put(classNames[predicted]).put((byte) ',');
+                putActual(actual, unknownActual);
+                for (double probability: posterior) {
+                    buffer.put((byte) ',');
+                    putNumber(probability);
+                }
+                break;
+            default:
+                buffer.putInt(predicted).putInt(actual);
+                for (double probability: posterior)
+                    buffer.putDouble(probability);
+                return;
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Puts the name of the actual class, leaving room for the rest of the row afterwards
+     */
+    private void putActual(int actual, String unknownActual) throws IOException {
+        if (actual != -1) {
+            buffer.put(classNames[actual]);
+            return;
+        }
+        putBytes(name(unknownActual == null ? "?" : unknownActual));
+        if (buffer.remaining() < maxRowBytes)
+            handOff();
+    }
+
+    /**
+     * Writes a number like DecimalFormat("#.############") does: rounded half to even to twelve
+     * decimals, without trailing zeros. Probabilities are rounded exactly, using the error free
+     * product of the value and 10^12, and their digits are put straight into the buffer.
+     */
+    private void putNumber(double value) throws IOException {
+        if (!(value >= 0.0 && value < MAX_FAST_VALUE) || decimalSeparator > 0x7f) {
+            putBytes(fallback.format(value).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        long scaled = roundScaled(value);
+        putDigits(scaled / SCALE, 1);
+        long fraction = scaled % SCALE;
+        if (fraction == 0)
+            return;
+        int digits = DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        buffer.put((byte) decimalSeparator);
+        putDigits(fraction, digits);
+    }
+
+    /**
+     * Returns value * 10^12 rounded half to even, where the product is taken exactly
+     */
+    static long roundScaled(double value) {
+        double product = value * SCALE;
+        // The rounding error of the product, so that product + error is exactly value * 10^12
+        double c = 134217729.0 * value;
+        double high = c - (c - value), low = value - high;
+        double error = ((high * SCALE_HIGH - product) + high * SCALE_LOW + low * SCALE_HIGH) + low * SCALE_LOW;
+
+        double floor = Math.floor(product);
+        long rounded = (long) floor;
+        // The fraction of the exact product minus a half is difference + error
+        double difference = (product - floor) - 0.5;
+        if (difference > -error || difference == -error && (rounded & 1) == 1)
+            rounded++;
+        return rounded;
+    }
+
+    /**
+     * Puts a non-negative number with at least the given number of digits, padding with zeros
+     */
+    private void putDigits(long number, int minDigits) {
+        int digits = 1;
+        for (long rest = number / 10; rest > 0; rest /= 10)
+            digits++;
+        digits = Math.max(digits, minDigits);
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--) {
+            buffer.put(i, (byte) ('0' + number % 10));
+            number /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        for (int from = 0; from < bytes.length; ) {
+            if (!buffer.hasRemaining())
+                handOff();
+            int length = Math.min(buffer.remaining(), bytes.length - from);
+            buffer.put(bytes, from, length);
+            from += length;
+        }
+    }
+
+    /**
+     * Hands the current buffer to the writer thread and takes a free one
+     */
+    private void handOff() throws IOException {
+        if (failure != null)
+            throw failure;
+        buffer.flip();
+        try {
+            full.put(buffer);
+            buffer = free.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing predictions", ie);
+        }
+    }
+
+    /**
+     * Runs on the writer thread. After a failed write the remaining buffers are only recycled, so
+     * the producer never blocks, and the failure is thrown from its next hand off.
+     */
+    private void writeBuffers() {
+        try {
+            while (true) {
+                ByteBuffer next = full.take();
+                if (next == END)
+                    return;
+                try {
+                    while (failure == null && next.hasRemaining())
+                        channel.write(next);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+                next.clear();
+                free.put(next);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes out everything still buffered and stops the writer thread
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer.position() > 0)
+            handOff();
+        try {
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing predictions", ie);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+}
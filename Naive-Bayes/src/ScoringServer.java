@@ -0,0 +1,271 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running HTTP service that scores rows with a trained Bayes net. It listens on the loopback
+ * interface only.
+ *
+ * POST /score takes one row per line, each a comma separated list of feature values (a trailing
+ * class value is ignored), and answers one line per row with the most probable class and its
+ * probability. Rows from concurrent requests are coalesced into micro-batches of up to
+ * maxBatchSize rows, waiting at most maxDelayMicros for a batch to fill, and the batches are scored
+ * on a pool of worker threads. GET /stats reports request counts and p50/p99 latency as JSON, and
+ * the hit rate when the net is a PosteriorCache.
+ */
+public class ScoringServer {
+
+    // Number of most recent request latencies kept for the percentiles
+    private static final int LATENCY_WINDOW = 1 << 14;
+
+    private final BayesNetwork bn;
+    private final ArrayList<Feature> features;
+    private final ArrayList<String> classValues;
+    private final int maxBatchSize;
+    private final long maxDelayMicros;
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService workers;
+    private final HttpServer server;
+    private final Thread batcher;
+    private volatile boolean running;
+
+    private final AtomicLong requests = new AtomicLong(), rows = new AtomicLong(), batches = new AtomicLong();
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long latencyCount;
+
+    /**
+     * Rows of one request waiting to be scored
+     */
+    private static class Request {
+
+        final int[][] rows;
+        final CompletableFuture<BayesNetwork.Predictions> result = new CompletableFuture<>();
+
+        Request(int[][] rows) {
+            this.rows = rows;
+        }
+
+    }
+
+    /**
+     * Creates a server for a trained net. Nothing is served until start is called.
+     * @param bn The trained net
+     * @param features List of all the features the net was trained on
+     * @param classValues List of all class values
+     * @param port Port on the loopback interface to listen on
+     * @param maxBatchSize Largest number of rows scored in one batch
+     * @param maxDelayMicros Longest time a row waits for its batch to fill
+     * @param numWorkers Number of threads scoring batches
+     */
+    ScoringServer(BayesNetwork bn, ArrayList<Feature> features, ArrayList<String> classValues, int port,
+                  int maxBatchSize, long maxDelayMicros, int numWorkers) throws IOException {
+        this.bn = bn;
+        this.features = features;
+        this.classValues = classValues;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMicros = maxDelayMicros;
+        this.workers = Executors.newFixedThreadPool(numWorkers);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/score", this::score);
+        server.createContext("/stats", this::stats);
+        // Request threads only parse and then wait for their batch, so they are cheap to have many of
+        server.setExecutor(Executors.newCachedThreadPool());
+        this.batcher = new Thread(this::batchRequests, "scoring-batcher");
+        batcher.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        batcher.start();
+        server.start();
+    }
+
+    void stop() {
+        running = false;
+        server.stop(0);
+        batcher.interrupt();
+        workers.shutdown();
+    }
+
+    /**
+     * Takes requests off the queue and groups them into batches, which are handed to the workers
+     */
+    private void batchRequests() {
+        while (running) {
+            try {
+                Request first = queue.take();
+                ArrayList<Request> batch = new ArrayList<>();
+                batch.add(first);
+                int batchRows = first.rows.length;
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+                while (batchRows < maxBatchSize) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    batchRows += next.rows.length;
+                }
+                int size = batchRows;
+                workers.execute(() -> scoreBatch(batch, size));
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Scores all rows of a batch in one call and hands every request its share of the results
+     */
+    private void scoreBatch(ArrayList<Request> batch, int size) {
+        try {
+            ArrayList<Instance> instances = new ArrayList<>(size);
+            for (Request request: batch)
+                for (int[] row: request.rows)
+                    instances.add(new Instance(row, -1));
+            BayesNetwork.Predictions predictions;
+            try (Metrics.Span span = Metrics.phase("serve.batch")) {
+                predictions = bn.classify(instances);
+                span.rows(size);
+            }
+            batches.incrementAndGet();
+
+            int offset = 0;
+            for (Request request: batch) {
+                BayesNetwork.Predictions share = new BayesNetwork.Predictions(request.rows.length);
+                System.arraycopy(predictions.posteriors, offset, share.posteriors, 0, request.rows.length);
+                System.arraycopy(predictions.labels, offset, share.labels, 0, request.rows.length);
+                offset += request.rows.length;
+                request.result.complete(share);
+            }
+        } catch (RuntimeException e) {
+            for (Request request: batch)
+                request.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Handles POST /score
+     */
+    private void score(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Use POST\n");
+            return;
+        }
+        int[][] requestRows;
+        try {
+            requestRows = parseRows(readBody(exchange.getRequestBody()));
+        } catch (IllegalArgumentException iae) {
+            respond(exchange, 400, iae.getMessage() + "\n");
+            return;
+        }
+
+        Request request = new Request(requestRows);
+        queue.add(request);
+        BayesNetwork.Predictions predictions;
+        try {
+            predictions = request.result.get();
+        } catch (InterruptedException | ExecutionException e) {
+            respond(exchange, 500, e + "\n");
+            return;
+        }
+
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < requestRows.length; i++) {
+            int label = predictions.labels[i];
+            response.append(classValues.get(label)).append(' ').append(predictions.posteriors[i][label]).append('\n');
+        }
+        respond(exchange, 200, response.toString());
+
+        requests.incrementAndGet();
+        rows.addAndGet(requestRows.length);
+        recordLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * Handles GET /stats
+     */
+    private void stats(HttpExchange exchange) throws IOException {
+        long[] window;
+        synchronized (latencies) {
+            window = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+        }
+        Arrays.sort(window);
+        String cache = "";
+        if (bn instanceof PosteriorCache) {
+            PosteriorCache posteriorCache = (PosteriorCache) bn;
+            cache = String.format(Locale.ROOT, ", \"cache_hits\": %d, \"cache_misses\": %d, \"cache_hit_rate\": %.4f",
+                    posteriorCache.hits(), posteriorCache.misses(), posteriorCache.hitRate());
+        }
+        respond(exchange, 200, String.format(Locale.ROOT,
+                "{\"requests\": %d, \"rows\": %d, \"batches\": %d, \"p50_ms\": %.3f, \"p99_ms\": %.3f%s}\n",
+                requests.get(), rows.get(), batches.get(), percentile(window, 0.50) / 1e6, percentile(window, 0.99) / 1e6, cache));
+    }
+
+    private void recordLatency(long nanos) {
+        synchronized (latencies) {
+            latencies[(int) (latencyCount++ % LATENCY_WINDOW)] = nanos;
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0.0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    /**
+     * Interns the rows of a request body, one row per non-empty line
+     */
+    private int[][] parseRows(String body) {
+        ArrayList<int[]> parsed = new ArrayList<>();
+        for (String line: body.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+            String[] values = line.split(",");
+            if (values.length < features.size())
+                throw new IllegalArgumentException("Row '" + line + "' has fewer than " + features.size() + " values");
+            int[] row = new int[features.size()];
+            for (int i = 0; i < row.length; i++)
+                row[i] = features.get(i).encode(values[i].trim());
+            parsed.add(row);
+        }
+        return parsed.toArray(new int[0][]);
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; )
+            body.write(buffer, 0, read);
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
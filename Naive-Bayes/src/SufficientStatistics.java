@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * The counts a Bayes net is trained from: the number of instances, of each class, of each feature
+ * value with each class and, for a TAN, of each pair of feature values with each class. Counts
+ * gathered separately, e.g. by several threads over shards of the data, can be merged. Since the
+ * merge only adds integers it is associative, so merged counts are identical to counting serially.
+ * For the same reason counts over a subset of the instances can be subtracted again exactly.
+ */
+public class SufficientStatistics {
+
+    // Shards smaller than this are not worth counting on a separate thread
+    private static final int MIN_SHARD_SIZE = 8192;
+
+    private final int numClasses;
+    int numInstances;
+    int[] classCounts;
+    // Indexed by [feature][value code * number of classes + class code]
+    int[][] featureClassCounts;
+    // Counts of every pair of feature values together with the class, null if not needed
+    PairCounts pairCounts;
+
+    /**
+     * Creates empty statistics
+     * @param features List of all the features
+     * @param numClasses Number of class values
+     * @param countPairs Whether to also count pairs of feature values, as needed by a TAN
+     */
+    SufficientStatistics(ArrayList<Feature> features, int numClasses, boolean countPairs) {
+        this.numClasses = numClasses;
+        this.classCounts = new int[numClasses];
+        this.featureClassCounts = new int[features.size()][];
+        for (int i = 0; i < features.size(); i++)
+            featureClassCounts[i] = new int[features.get(i).cardinality() * numClasses];
+        if (countPairs)
+            this.pairCounts = PairCounts.create(features, numClasses);
+    }
+
+    /**
+     * Creates empty statistics for the same features as shape, without pair counts
+     */
+    private SufficientStatistics(SufficientStatistics shape) {
+        this.numClasses = shape.numClasses;
+        this.classCounts = new int[numClasses];
+        this.featureClassCounts = new int[shape.featureClassCounts.length][];
+        for (int i = 0; i < featureClassCounts.length; i++)
+            featureClassCounts[i] = new int[shape.featureClassCounts[i].length];
+    }
+
+    /**
+     * Counts one instance
+     * @param instance The instance to count
+     */
+    void add(Instance instance) {
+        numInstances++;
+        classCounts[instance.classValue]++;
+        for (int i = 0; i < instance.features.length; i++)
+            featureClassCounts[i][instance.features[i] * numClasses + instance.classValue]++;
+        if (pairCounts != null)
+            pairCounts.add(instance);
+    }
+
+    /**
+     * Counts every instance of a columnar data set. Each feature is counted on its own, a block of
+     * rows at a time, as a histogram over its column and the class column, and the features are
+     * spread over the common fork-join pool since their counts do not overlap.
+     * @param data The instances to count
+     */
+    void add(ColumnarDataset data) {
+        int numFeatures = featureClassCounts.length;
+        int rows = data.size();
+        numInstances += rows;
+        int[] classes = new int[ColumnarDataset.BLOCK_SIZE];
+        for (int from = 0; from < rows; from += classes.length) {
+            int to = Math.min(rows, from + classes.length);
+            data.read(numFeatures, from, to, classes);
+            for (int i = 0; i < to - from; i++)
+                classCounts[classes[i]]++;
+        }
+        IntStream.range(0, numFeatures).parallel().forEach(feature -> {
+            int[] counts = featureClassCounts[feature];
+            int[] values = new int[ColumnarDataset.BLOCK_SIZE];
+            int[] blockClasses = new int[ColumnarDataset.BLOCK_SIZE];
+            for (int from = 0; from < rows; from += values.length) {
+                int to = Math.min(rows, from + values.length);
+                data.read(feature, from, to, values);
+                data.read(numFeatures, from, to, blockClasses);
+                for (int i = 0; i < to - from; i++)
+                    counts[values[i] * numClasses + blockClasses[i]]++;
+            }
+        });
+        if (pairCounts != null)
+            pairCounts.add(data);
+    }
+
+    /**
+     * Adds the counts of other to these counts. Both must have been created for the same features.
+     * @param other Counts gathered over some other instances
+     */
+    void merge(SufficientStatistics other) {
+        addCounts(other, 1);
+        if (pairCounts != null)
+            pairCounts.merge(other.pairCounts);
+    }
+
+    /**
+     * Adds the instance, class and feature counts of other, multiplied by sign, to these counts,
+     * leaving the pair counts alone
+     */
+    private void addCounts(SufficientStatistics other, int sign) {
+        numInstances += sign * other.numInstances;
+        for (int i = 0; i < classCounts.length; i++)
+            classCounts[i] += sign * other.classCounts[i];
+        for (int i = 0; i < featureClassCounts.length; i++)
+            for (int j = 0; j < featureClassCounts[i].length; j++)
+                featureClassCounts[i][j] += sign * other.featureClassCounts[i][j];
+    }
+
+    /**
+     * Takes the counts of other away from these counts. Both must have been created for the same
+     * features, and other must have counted a subset of the instances these counts were gathered
+     * over, e.g. one fold of a cross validation.
+     * @param other Counts gathered over some of the same instances
+     */
+    void subtract(SufficientStatistics other) {
+        addCounts(other, -1);
+        if (pairCounts != null)
+            pairCounts.subtract(other.pairCounts);
+    }
+
+    /**
+     * Sets every count back to zero
+     */
+    void clear() {
+        numInstances = 0;
+        Arrays.fill(classCounts, 0);
+        for (int[] counts: featureClassCounts)
+            Arrays.fill(counts, 0);
+        if (pairCounts != null)
+            pairCounts.clear();
+    }
+
+    /**
+     * Counts a list of instances. Large lists are counted on the common fork-join pool: the list is
+     * cut into one shard per worker, the instances, classes and feature values of each shard are
+     * counted into their own statistics and the shards are merged pairwise. The pair counts, which
+     * can take far more memory than the rest, are not sharded but counted once into this table.
+     * @param instances The instances to count
+     */
+    void add(List<Instance> instances) {
+        if (instances.size() < 2 * MIN_SHARD_SIZE) {
+            for (Instance instance: instances)
+                add(instance);
+            return;
+        }
+        count(instances, 1);
+    }
+
+    /**
+     * Takes a list of instances out of these counts again, e.g. one fold of a cross validation. It
+     * is counted the same way as by add, and every instance must have been counted before.
+     * @param instances Some of the instances these counts were gathered over
+     */
+    void remove(List<Instance> instances) {
+        count(instances, -1);
+    }
+
+    /**
+     * Counts a list of instances on the common fork-join pool and adds the counts, multiplied by
+     * sign, to these counts
+     */
+    private void count(List<Instance> instances, int sign) {
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        int shardSize = Math.max(MIN_SHARD_SIZE, (instances.size() + parallelism - 1) / parallelism);
+        addCounts(ForkJoinPool.commonPool().invoke(new CountTask(instances, this, shardSize, 0, instances.size())), sign);
+        if (pairCounts != null)
+            pairCounts.add(instances, sign);
+    }
+
+    /**
+     * Counts a range of instances, splitting it in half until it fits in one shard
+     */
+    private static class CountTask extends RecursiveTask<SufficientStatistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Instance> instances;
+        // The statistics whose features are counted, not written to
+        private final SufficientStatistics shape;
+        private final int shardSize;
+        private final int from, to;
+
+        CountTask(List<Instance> instances, SufficientStatistics shape, int shardSize, int from, int to) {
+            this.instances = instances;
+            this.shape = shape;
+            this.shardSize = shardSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SufficientStatistics compute() {
+            if (to - from <= shardSize) {
+                SufficientStatistics statistics = new SufficientStatistics(shape);
+                for (int i = from; i < to; i++)
+                    statistics.add(instances.get(i));
+                return statistics;
+            }
+            int middle = (from + to) >>> 1;
+            CountTask right = new CountTask(instances, shape, shardSize, middle, to);
+            right.fork();
+            SufficientStatistics statistics = new CountTask(instances, shape, shardSize, from, middle).compute();
+            statistics.addCounts(right.join(), 1);
+            return statistics;
+        }
+
+    }
+
+}
@@ -1,15 +1,32 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TAN extends BayesNetwork {
 
+    private static final double LN_2 = Math.log(2);
+
     private ArrayList<Feature> features;
     private ArrayList<String> classValues;
-    private ArrayList<Instance> instances;
+    // Naive Bayes net over the same counts, used for the root of the tree and the class prior
     private NaiveBayes naiveBayes;
-    private double[][] CPT;
-    private double[][][][][] X1X2YTable;
-
-    static ArrayList<Node> spanningTreeEdges;
+    // Counts of every pair of feature values together with the class
+    private PairCounts X1X2YTable;
+
+    // Whether to learn the tree with Kruskal's algorithm instead of Prim's
+    boolean useKruskal = false;
+    // The version of the counts the tree was learned from, -1 before it is first learned
+    private volatile long treeVersion;
+    // Parent of every feature in the learned tree, -1 for the root
+    private int[] parents;
+    // Nodes of the learned tree, in the order of the features
+    private ArrayList<Node> spanningTreeEdges;
+    // Log of P(X = value | parent = parentValue, Y = class) for every feature with a parent, indexed
+    // by [feature][(parentValue * values + value) * classes + class]
+    private double[][] logTables;
 
     /**
      * Constructor for the Tree Augmented Naive Bayes
@@ -19,45 +36,53 @@ public class TAN extends BayesNetwork {
     TAN(ArrayList<String> classValues, ArrayList<Feature> features) {
         this.features = features;
         this.classValues = classValues;
+        // The counts include a table for all pairs of features and class values to store how
+        // many times each occurred
+        this.naiveBayes = new NaiveBayes(classValues, features,
+                new SufficientStatistics(features, classValues.size(), true));
+        this.X1X2YTable = naiveBayes.statistics.pairCounts;
+        this.treeVersion = -1;
     }
 
     /**
-     * Find the mutual information for all sets of edges and returns the table containing all values
+     * Constructor for a TAN that was trained elsewhere and only holds its tree and log tables, e.g.
+     * one loaded from a model file. It can be queried but not trained any further.
+     * @param classValues List of possible class values
+     * @param features List of possible features
+     * @param naiveBayes Naive Bayes net holding the class prior and the tables of the root
+     * @param parents The parent of every feature in the tree, -1 for the root
+     * @param logTables The log tables of every feature with a parent, as returned by compile
      */
-    private double[][] computeMutualInformation() {
-        double[][] mutualInformation = new double[features.size()][features.size()];
-        for (int i = 0; i < features.size(); i++) {
-            for (int j = i + 1; j < features.size(); j++) {
-                double[][] x1y = new double[features.get(i).allowedValues.size()][classValues.size()];
-                double[][] x2y = new double[features.get(j).allowedValues.size()][classValues.size()];
-                double[][][] x1x2y = new double[features.get(i).allowedValues.size()][features.get(j).allowedValues.size()][classValues.size()];
-
-                for (Instance instance: instances) {
-                    int x1 = features.get(i).allowedValues.indexOf(instance.features[i]);
-                    int x2 = features.get(j).allowedValues.indexOf(instance.features[j]);
-                    int y = classValues.indexOf(instance.classValue);
-                    x1x2y[x1][x2][y]++;
-                    x1y[x1][y]++;
-                    x2y[x2][y]++;
-                }
-
-                double mi = 0.0;
-                for (int k = 0; k < x1y.length; k++) {
-                    for (int l = 0; l < x2y.length; l++) {
-                        for (int m = 0; m < classValues.size(); m++) {
-
-                            double px1x2y = (x1x2y[k][l][m] + 1.0) / (instances.size() + (x1y.length * x2y.length * classValues.size()));
-                            double px1x2GivenY = (x1x2y[k][l][m] + 1.0) / (naiveBayes.frequencyOfClass.get(classValues.get(m)) + (x1y.length * x2y.length));
-                            double x1GivenY = (x1y[k][m] + 1.0) / (naiveBayes.frequencyOfClass.get(classValues.get(m)) + x1y.length);
-                            double x2GivenY = (x2y[l][m] + 1.0) / (naiveBayes.frequencyOfClass.get(classValues.get(m)) + x2y.length);
+    TAN(ArrayList<String> classValues, ArrayList<Feature> features, NaiveBayes naiveBayes,
+        int[] parents, double[][] logTables) {
+        this.features = features;
+        this.classValues = classValues;
+        this.naiveBayes = naiveBayes;
+        this.parents = parents;
+        this.logTables = logTables;
+        buildTree();
+        this.treeVersion = version();
+    }
 
-                            mi += px1x2y * (Math.log(px1x2GivenY / (x1GivenY * x2GivenY)) / Math.log(2));
-                        }
-                    }
-                }
-                mutualInformation[i][j] = mi;
+    /**
+     * Find the mutual information for all sets of edges and returns the table containing all values.
+     * Every pair is computed from the pair counts gathered in train, and the pairs are spread
+     * over the common fork-join pool. Each pair is computed independently into its own cell, so
+     * the table is the same whatever the number of threads.
+     */
+    double[][] computeMutualInformation() {
+        int numFeatures = features.size();
+        double[][] mutualInformation = new double[numFeatures][numFeatures];
+        int[] pairFeature1 = new int[numFeatures * (numFeatures - 1) / 2];
+        int[] pairFeature2 = new int[pairFeature1.length];
+        for (int i = 0, pair = 0; i < numFeatures; i++)
+            for (int j = i + 1; j < numFeatures; j++, pair++) {
+                pairFeature1[pair] = i;
+                pairFeature2[pair] = j;
             }
-        }
+        ForkJoinPool.commonPool().invoke(
+                new MutualInformationTask(mutualInformation, pairFeature1, pairFeature2, 0, pairFeature1.length));
+
         for (int i = 0; i < mutualInformation.length; i++)
             for (int j = 0; j < mutualInformation[i].length; j++) {
                 if (i == j)
@@ -69,180 +94,422 @@ public class TAN extends BayesNetwork {
     }
 
     /**
-     * Uses Prim's algorithm to find the maximum spanning tree
-     * @param nodes The list of nodes in the graph
+     * Computes the conditional mutual information I(X1; X2 | Y) in bits between two features
+     * @param i Index of the first feature
+     * @param j Index of the second feature, greater than i
+     * @return The mutual information between the two features given the class
      */
-    private void Prim(ArrayList<Node> nodes) {
+    private double mutualInformation(int i, int j) {
+        int values1 = features.get(i).cardinality(), values2 = features.get(j).cardinality();
+        int numClasses = classValues.size();
+        long base = X1X2YTable.index(i, 0, j, 0, 0);
+
+        // Marginal counts of each feature with the class, summed out of the pair counts
+        double[][] x1y = new double[values1][numClasses];
+        double[][] x2y = new double[values2][numClasses];
+        for (int k = 0; k < values1; k++)
+            for (int l = 0; l < values2; l++)
+                for (int m = 0; m < numClasses; m++) {
+                    int count = X1X2YTable.get(base + ((long) k * values2 + l) * numClasses + m);
+                    x1y[k][m] += count;
+                    x2y[l][m] += count;
+                }
 
-        spanningTreeEdges = new ArrayList<>(features.size() - 1);
-        nodes.get(0).key = 0.0;
-        Node startNode = nodes.get(0);
-        spanningTreeEdges.add(startNode);
+        double mi = 0.0;
+        for (int k = 0; k < values1; k++) {
+            for (int l = 0; l < values2; l++) {
+                for (int m = 0; m < numClasses; m++) {
+                    double count = X1X2YTable.get(base + ((long) k * values2 + l) * numClasses + m);
 
-        for(int i = 0; i < CPT.length; i++){
-            CPT[i][0] = 0;
+                    double px1x2y = (count + 1.0) / (naiveBayes.numInstances() + (values1 * values2 * numClasses));
+                    double px1x2GivenY = (count + 1.0) / (naiveBayes.statistics.classCounts[m] + (values1 * values2));
+                    double x1GivenY = (x1y[k][m] + 1.0) / (naiveBayes.statistics.classCounts[m] + values1);
+                    double x2GivenY = (x2y[l][m] + 1.0) / (naiveBayes.statistics.classCounts[m] + values2);
+
+                    mi += px1x2y * Math.log(px1x2GivenY / (x1GivenY * x2GivenY));
+                }
+            }
         }
+        // Convert from nats to bits once for the whole sum
+        return mi / LN_2;
+    }
 
-        while (spanningTreeEdges.size() < nodes.size()) {
-            spanningTreeEdges.sort(Node.comparator);
-            Node maxChild = null, maxParent = null;
-            double maxKey = Double.MIN_VALUE;
-
-            for (Node node : spanningTreeEdges) {
-                for (int i = 0; i < nodes.size(); i++) {
-                    if (CPT[features.indexOf(node.node)][i] > maxKey && !spanningTreeEdges.contains(nodes.get(i))) {
-                        maxKey = CPT[features.indexOf(node.node)][i];
-                        maxChild = nodes.get(i);
-                        maxParent = node;
-                    }
+    /**
+     * Computes the mutual information of a range of feature pairs, splitting the range in half
+     * until it is small enough to compute directly
+     */
+    private class MutualInformationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        // Ranges of at most this many pairs are not split any further
+        private static final int PAIRS_PER_TASK = 16;
+
+        private final double[][] mutualInformation;
+        private final int[] pairFeature1, pairFeature2;
+        private final int from, to;
+
+        MutualInformationTask(double[][] mutualInformation, int[] pairFeature1, int[] pairFeature2,
+                              int from, int to) {
+            this.mutualInformation = mutualInformation;
+            this.pairFeature1 = pairFeature1;
+            this.pairFeature2 = pairFeature2;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PAIRS_PER_TASK) {
+                for (int pair = from; pair < to; pair++)
+                    mutualInformation[pairFeature1[pair]][pairFeature2[pair]] =
+                            mutualInformation(pairFeature1[pair], pairFeature2[pair]);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MutualInformationTask(mutualInformation, pairFeature1, pairFeature2, from, middle),
+                        new MutualInformationTask(mutualInformation, pairFeature1, pairFeature2, middle, to));
+            }
+        }
+
+    }
+
+    /**
+     * Uses Prim's algorithm on the dense graph of features to find the maximum spanning tree.
+     * Every feature outside the tree keeps the weight of its best edge into the tree, so each step
+     * is a linear scan for the best feature followed by a linear update, O(F^2) in total.
+     * @param weights The symmetric edge weights between features
+     * @return The parent of every feature in the tree rooted at feature 0, -1 for the root
+     */
+    static int[] Prim(double[][] weights) {
+        int numFeatures = weights.length;
+        int[] parents = new int[numFeatures];
+        double[] keys = new double[numFeatures];
+        boolean[] inTree = new boolean[numFeatures];
+        Arrays.fill(parents, -1);
+        Arrays.fill(keys, Double.NEGATIVE_INFINITY);
+
+        int added = 0;
+        for (int step = 0; step < numFeatures; step++) {
+            inTree[added] = true;
+            // Update the best edge into the tree of every feature still outside it
+            int next = -1;
+            for (int i = 0; i < numFeatures; i++) {
+                if (inTree[i])
+                    continue;
+                if (weights[added][i] > keys[i]) {
+                    keys[i] = weights[added][i];
+                    parents[i] = added;
                 }
+                if (next == -1 || keys[i] > keys[next])
+                    next = i;
             }
-            assert maxChild != null;
-            maxChild.parent = maxParent;
-            spanningTreeEdges.add(maxChild);
-            for (int i = 0; i < CPT.length; i++)
-                CPT[i][nodes.indexOf(maxChild)] = 0;
+            if (next == -1)
+                break;
+            added = next;
         }
+        return parents;
+    }
 
-        for (Node node: nodes)
-            node.children.clear();
+    /**
+     * Uses Kruskal's algorithm with a union-find forest to find the maximum spanning tree, which
+     * is then rooted at feature 0. Edges of equal weight are taken in order of their features, so
+     * this returns the same tree as Prim when all weights are distinct.
+     * @param weights The symmetric edge weights between features
+     * @return The parent of every feature in the tree rooted at feature 0, -1 for the root
+     */
+    static int[] Kruskal(double[][] weights) {
+        int numFeatures = weights.length;
+        Integer[] edges = new Integer[numFeatures * (numFeatures - 1) / 2];
+        int[] edgeFeature1 = new int[edges.length], edgeFeature2 = new int[edges.length];
+        for (int i = 0, edge = 0; i < numFeatures; i++)
+            for (int j = i + 1; j < numFeatures; j++, edge++) {
+                edges[edge] = edge;
+                edgeFeature1[edge] = i;
+                edgeFeature2[edge] = j;
+            }
+        Arrays.sort(edges, (e1, e2) -> Double.compare(weights[edgeFeature1[e2]][edgeFeature2[e2]],
+                weights[edgeFeature1[e1]][edgeFeature2[e1]]));
+
+        int[] components = new int[numFeatures];
+        for (int i = 0; i < numFeatures; i++)
+            components[i] = i;
+        ArrayList<ArrayList<Integer>> neighbours = new ArrayList<>(numFeatures);
+        for (int i = 0; i < numFeatures; i++)
+            neighbours.add(new ArrayList<>());
+        int treeEdges = 0;
+        for (int k = 0; k < edges.length && treeEdges < numFeatures - 1; k++) {
+            int i = edgeFeature1[edges[k]], j = edgeFeature2[edges[k]];
+            int rootI = find(components, i), rootJ = find(components, j);
+            if (rootI == rootJ)
+                continue;
+            components[rootJ] = rootI;
+            neighbours.get(i).add(j);
+            neighbours.get(j).add(i);
+            treeEdges++;
+        }
 
-        for (Node node: nodes)
-            if (node.parent != null)
-                node.parent.children.add(node);
+        // Orient the tree away from feature 0
+        int[] parents = new int[numFeatures];
+        Arrays.fill(parents, -1);
+        boolean[] visited = new boolean[numFeatures];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        visited[0] = true;
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int neighbour: neighbours.get(node))
+                if (!visited[neighbour]) {
+                    visited[neighbour] = true;
+                    parents[neighbour] = node;
+                    queue.add(neighbour);
+                }
+        }
+        return parents;
     }
 
     /**
-     * Creates a spanning tree using mutual information between pairs of features
+     * Finds the root of the component containing a feature, halving the path on the way
      */
-    private void createSpanningTree() {
+    private static int find(int[] components, int feature) {
+        while (components[feature] != feature) {
+            components[feature] = components[components[feature]];
+            feature = components[feature];
+        }
+        return feature;
+    }
 
-        CPT = computeMutualInformation();
+    /**
+     * Creates a spanning tree using mutual information between pairs of features, unless the tree
+     * has already been learned from the current counts. Counts that change while the tree is
+     * learned leave the net stale, so the tree is learned again on the next query.
+     */
+    @SuppressWarnings("try")
+    private synchronized void createSpanningTree() {
+        long version = version();
+        if (treeVersion == version)
+            return;
+
+        double[][] mutualInformation;
+        try (Metrics.Span span = Metrics.phase("train.mutual_information")) {
+            mutualInformation = computeMutualInformation();
+        }
+        try (Metrics.Span span = Metrics.phase("train.tree")) {
+            parents = useKruskal ? Kruskal(mutualInformation) : Prim(mutualInformation);
+        }
+        try (Metrics.Span span = Metrics.phase("train.compile")) {
+            logTables = compileTables();
+        }
+        buildTree();
+
+        treeVersion = version;
+    }
+
+    /**
+     * Returns whether the counts have changed since the tree was learned
+     */
+    private boolean stale() {
+        return treeVersion != version();
+    }
 
+    /**
+     * Creates the nodes of the tree given by parents
+     */
+    private void buildTree() {
         // Create graph where each node is a feature
         ArrayList<Node> nodes = new ArrayList<>();
-        for (Feature feature: features)
-            nodes.add(new Node(feature));
-
-        // Add edges between all nodes
+        for (int i = 0; i < features.size(); i++)
+            nodes.add(new Node(features.get(i), i));
         for (Node node: nodes)
-            for (Node node1: nodes)
-                if (node != node1)
-                    node.children.add(node1);
+            if (parents[node.index] != -1) {
+                node.parent = nodes.get(parents[node.index]);
+                node.parent.children.add(node);
+            }
+        spanningTreeEdges = nodes;
+    }
 
-        // Prim's algorithm
-        Prim(nodes);
+    /**
+     * Returns the nodes of the learned tree, in the order of the features
+     */
+    ArrayList<Node> spanningTree() {
+        if (stale())
+            createSpanningTree();
+        return spanningTreeEdges;
+    }
 
+    /**
+     * Returns the parent of every feature in the learned tree, -1 for the root
+     */
+    int[] parents() {
+        if (stale())
+            createSpanningTree();
+        return parents;
+    }
+
+    /**
+     * Returns the Naive Bayes net holding the class prior and the tables of the root
+     */
+    NaiveBayes naiveBayes() {
+        return naiveBayes;
+    }
+
+    /**
+     * Returns the log conditional table of every feature given its parent in the tree and the class
+     * @return The tables indexed by [feature][(parentValue * values + value) * classes + class],
+     * null for the root
+     */
+    double[][] compile() {
+        if (stale())
+            createSpanningTree();
+        return logTables;
+    }
+
+    /**
+     * Computes the log conditional tables of the learned tree from the pair counts. For a feature
+     * X with parent Z, P(X=x|Z=z,Y) = [(# of X=x,Z=z,Y) + 1] / [(# of Z=z,Y) + (# of X)], so each
+     * (z, y) needs one sum over the values of X rather than one per table entry.
+     */
+    private double[][] compileTables() {
+        int numClasses = classValues.size();
+        double[][] tables = new double[features.size()][];
+        for (int feature = 0; feature < features.size(); feature++) {
+            int parent = parents[feature];
+            if (parent == -1)
+                continue;
+            int numValues = features.get(feature).cardinality();
+            int numParentValues = features.get(parent).cardinality();
+            double[] table = new double[numParentValues * numValues * numClasses];
+            double[] parentCounts = new double[numClasses];
+            for (int parentValue = 0; parentValue < numParentValues; parentValue++) {
+                Arrays.fill(parentCounts, numValues);
+                for (int value = 0; value < numValues; value++)
+                    for (int classValue = 0; classValue < numClasses; classValue++) {
+                        int count = X1X2YTable.get(feature, value, parent, parentValue, classValue);
+                        table[(parentValue * numValues + value) * numClasses + classValue] = count + 1.0;
+                        parentCounts[classValue] += count;
+                    }
+                for (int value = 0; value < numValues; value++)
+                    for (int classValue = 0; classValue < numClasses; classValue++) {
+                        int k = (parentValue * numValues + value) * numClasses + classValue;
+                        table[k] = Math.log(table[k] / parentCounts[classValue]);
+                    }
+            }
+            tables[feature] = table;
+        }
+        return tables;
     }
 
     /**
      * Calculates the probability of a given class in the naive bayes net given feature values
-     * @param featureList List of features values for the instance
-     * @param classValue The class value for which the probability needs to be calculated
+     * @param featureList Codes of the feature values for the instance
+     * @param classValue The class code for which the probability needs to be calculated
      * @return The probability of a class given features values
      */
-    double probabilityClassGivenFeatures(String[] featureList, String classValue) {
-        double numerator = 1.0, denominator = 0.0;
-        for (Node node: spanningTreeEdges) {
-            if (node.parent != null)
-                numerator *= probabilityFeatureGivenClassAndFeature(node.node.featureName, featureList[features.indexOf(node.node)], node.parent.node.featureName, featureList[features.indexOf(node.parent.node)], classValue);
-            else
-                numerator *= naiveBayes.probabilityFeatureGivenClass(node.node.featureName, featureList[features.indexOf(node.node)], classValue);
-        }
-        numerator *= naiveBayes.probabilityOfClass.get(classValue);
-
-        for (String classVal: classValues) {
-            double numerator1 = 1.0;
-            for (Node node: spanningTreeEdges) {
-                if (node.parent != null)
-                    numerator1 *= probabilityFeatureGivenClassAndFeature(node.node.featureName, featureList[features.indexOf(node.node)], node.parent.node.featureName, featureList[features.indexOf(node.parent.node)], classVal);
-                else
-                    numerator1 *= naiveBayes.probabilityFeatureGivenClass(node.node.featureName, featureList[features.indexOf(node.node)], classVal);
+    double probabilityClassGivenFeatures(int[] featureList, int classValue) {
+        return posterior(featureList)[classValue];
+    }
+
+    /**
+     * Calculates the probability of every class given the feature values from the compiled log
+     * tables, so each class costs one table lookup per feature, and normalizes with log-sum-exp.
+     * Features with an undeclared value are skipped, and a feature whose parent has an undeclared
+     * value falls back to its Naive Bayes table.
+     * @param featureList Codes of the feature values for the instance
+     * @return The probability of each class code given the feature values
+     */
+    double[] posterior(int[] featureList) {
+        if (stale())
+            createSpanningTree();
+        int numClasses = classValues.size();
+        double[] logPosterior = naiveBayes.logProbabilityOfClass().clone();
+        double[][][] logNaiveBayesTables = naiveBayes.logFeatureToProbability();
+        for (int feature = 0; feature < featureList.length; feature++) {
+            int value = featureList[feature];
+            if (value == -1)
+                continue;
+            int parent = parents[feature];
+            if (parent == -1 || featureList[parent] == -1) {
+                double[] logConditional = logNaiveBayesTables[feature][value];
+                for (int classValue = 0; classValue < numClasses; classValue++)
+                    logPosterior[classValue] += logConditional[classValue];
+            } else {
+                double[] logTable = logTables[feature];
+                int base = (featureList[parent] * features.get(feature).cardinality() + value) * numClasses;
+                for (int classValue = 0; classValue < numClasses; classValue++)
+                    logPosterior[classValue] += logTable[base + classValue];
             }
-            numerator1 *= naiveBayes.probabilityOfClass.get(classVal);
-            denominator += numerator1;
         }
-
-        return numerator / denominator;
+        return normalizeLogProbabilities(logPosterior);
     }
 
     /**
      * This method calculates the probability of a feature given the value of another feature and
      * the class
-     * @param featureName The name of the feature whose probability is being calculated
-     * @param featureValue The value of the above feature
-     * @param givenFeatureName The name of the feature that is given
-     * @param givenFeatureValue The value of the feature above
-     * @param classValue The class value given
+     * @param feature The index of the feature whose probability is being calculated
+     * @param featureValue The code of the value of the above feature
+     * @param givenFeature The index of the feature that is given, which must be its parent in the tree
+     * @param givenFeatureValue The code of the value of the feature above
+     * @param classValue The class code given
      * @return The probability of a feature given a class and another feature
      */
-    double probabilityFeatureGivenClassAndFeature(String featureName,
-                                                         String featureValue,
-                                                         String givenFeatureName,
-                                                         String givenFeatureValue,
-                                                         String classValue) {
-        if (featureName.equals(givenFeatureName))
-            return naiveBayes.probabilityFeatureGivenClass(featureName, featureValue, classValue);
-
-        double conditionalFeatureCount, classCount = 0, sum = 0.0, allowedValues2, prob, count;
-        Feature feature1 = null, feature2 = null;
-
-        // Find the feature objects associated with the given feature names
-        for (Feature feature: features) {
-            if (feature.featureName.equals(featureName))
-                feature1 = feature;
-            if (feature.featureName.equals(givenFeatureName))
-                feature2 = feature;
-        }
-        assert feature1 != null;
-        assert feature2 != null;
-
-        // Find the total count of feature1, feature2 and classValue
-        for (int i = 0; i < X1X2YTable.length; i++)
-            for (int j = 0; j < X1X2YTable[features.indexOf(feature1)].length; j++)
-                classCount += X1X2YTable[features.indexOf(feature1)][j][features.indexOf(feature2)][feature2.allowedValues.indexOf(givenFeatureValue)][classValues.indexOf(classValue)];
-
-        conditionalFeatureCount = X1X2YTable[features.indexOf(feature1)][feature1.allowedValues.indexOf(featureValue)][features.indexOf(feature2)][feature2.allowedValues.indexOf(givenFeatureValue)][classValues.indexOf(classValue)];
-        classCount = naiveBayes.frequencyOfClass.get(classValue);
-        allowedValues2 = feature2.allowedValues.size();
-
-        // Calculating the sum of probabilities of all values of feature1 to normalize
-        for (int i = 0; i < feature1.allowedValues.size(); i++) {
-            count = X1X2YTable[features.indexOf(feature1)][i][features.indexOf(feature2)][feature2.allowedValues.indexOf(givenFeatureValue)][classValues.indexOf(classValue)];
-            prob = (count + 1) / (classCount + allowedValues2 * classValues.size());
-            sum += prob;
-        }
+    double probabilityFeatureGivenClassAndFeature(int feature,
+                                                  int featureValue,
+                                                  int givenFeature,
+                                                  int givenFeatureValue,
+                                                  int classValue) {
+        if (feature == givenFeature)
+            return naiveBayes.probabilityFeatureGivenClass(feature, featureValue, classValue);
+        if (stale())
+            createSpanningTree();
+        if (parents[feature] != givenFeature)
+            throw new IllegalArgumentException(features.get(givenFeature).featureName + " is not the parent of "
+                    + features.get(feature).featureName + " in the tree");
+        int numClasses = classValues.size();
+        return Math.exp(logTables[feature][(givenFeatureValue * features.get(feature).cardinality()
+                + featureValue) * numClasses + classValue]);
+    }
 
-        return ((conditionalFeatureCount + 1.0) / (classCount + allowedValues2 * classValues.size())) / sum;
+    void reset() {
+        naiveBayes.reset();
+        modified();
     }
 
     /**
-     * Trains the given Tree Augmented - Naive Bayes net with the instances passed to it.
-     * Calculates all conditional and class probabilities and stores them in the data structures of
-     * the current object.
-     * @param instances The instances to train the naive bayes net on
+     * Adds one instance to the counts the net has been trained on. The tree is learned again from
+     * the counts the next time the net is queried.
+     * @param instance The instance to learn from
      */
-    void train(ArrayList<Instance> instances) {
-        this.instances = instances;
-        naiveBayes = new NaiveBayes(classValues, features);
-        naiveBayes.train(instances);
+    void update(Instance instance) {
+        naiveBayes.update(instance);
+        modified();
+    }
 
-        // Table for all features and class values to store how many times each occurred
-        X1X2YTable = new double[features.size()][][][][];
-        for (int i = 0; i < features.size(); i++) {
-            X1X2YTable[i] = new double[features.get(i).allowedValues.size()][features.size()][][];
-            for (int j = 0; j < features.get(i).allowedValues.size(); j++)
-                for (int k = 0; k < features.size(); k++)
-                    X1X2YTable[i][j][k] = new double[features.get(k).allowedValues.size()][classValues.size()];
-        }
+    void update(List<Instance> instances) {
+        naiveBayes.update(instances);
+        modified();
+    }
 
-        /* Initialize table of 2 features occurring given class */
-        for (Instance instance: instances)
-            for (int i = 0; i < instance.features.length; i++)
-                for (int j = 0; j < instance.features.length; j++)
-                    X1X2YTable[i][features.get(i).allowedValues.indexOf(instance.features[i])][j][features.get(j).allowedValues.indexOf(instance.features[j])][classValues.indexOf(instance.classValue)]++;
+    void remove(List<Instance> instances) {
+        naiveBayes.remove(instances);
+        modified();
+    }
+
+    void update(ColumnarDataset data) {
+        naiveBayes.update(data);
+        modified();
+    }
+
+    SufficientStatistics newStatistics() {
+        return naiveBayes.newStatistics();
+    }
+
+    void merge(SufficientStatistics shard) {
+        naiveBayes.merge(shard);
+        modified();
+    }
 
-        createSpanningTree();
+    void subtract(SufficientStatistics shard) {
+        naiveBayes.subtract(shard);
+        modified();
     }
 
 }
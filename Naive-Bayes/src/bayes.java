@@ -1,9 +1,13 @@
 import java.text.DecimalFormat;
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Scanner;
 
 public class bayes {
 
@@ -11,105 +15,231 @@ public class bayes {
     private static ArrayList<Feature> features;
     // Stores all class values
     static ArrayList<String> classValues;
+    // Format of the predictions, and the file they are written to instead of standard output
+    private static PredictionSink.Format predictionFormat = PredictionSink.Format.TEXT;
+    private static String predictionFile;
 
     public static void main(String[] args) {
 
-        if (args.length != 3) {
-            System.out.println("Usage: java bayes <trainfile> <testfile> <n/t>");
+        // Hash string attributes and attributes with more values than this into this many buckets
+        int hashBuckets = 0;
+        // Write the time, allocation and throughput of every phase to this file as JSON on exit
+        String metricsFile = null;
+        // Number of posteriors the scoring server caches, 0 for no cache
+        int cacheSize = 0;
+        while (args.length > 1 && Arrays.asList("-hash", "-metrics", "-format", "-out", "-cache").contains(args[0])) {
+            if (args[0].equals("-hash"))
+                hashBuckets = Integer.parseInt(args[1]);
+            else if (args[0].equals("-metrics"))
+                metricsFile = args[1];
+            else if (args[0].equals("-cache"))
+                cacheSize = Integer.parseInt(args[1]);
+            else if (args[0].equals("-format"))
+                predictionFormat = PredictionSink.Format.valueOf(args[1].toUpperCase());
+            else
+                predictionFile = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        boolean load = args.length == 3 && args[0].equals("-load");
+        boolean serve = args.length == 3 && args[0].equals("-serve");
+        boolean crossValidate = args.length == 4 && args[0].equals("-cv");
+        if (args.length != 3 && args.length != 4 || args.length == 4 && args[0].startsWith("-") && !crossValidate
+                || hashBuckets < 0 || hashBuckets > 0 && (load || serve) || cacheSize < 0 || cacheSize > 0 && !serve) {
+            System.out.println("Usage: java bayes [options] <trainfile> <testfile> <n/t> [<modelfile>]");
+            System.out.println("       java bayes [options] -cv <k> <trainfile> <n/t>");
+            System.out.println("       java bayes [options] -load <modelfile> <testfile>");
+            System.out.println("       java bayes [options] -serve <modelfile> <port>");
+            System.out.println("Options: -hash <buckets>    hash attributes with more values than this (training only)");
+            System.out.println("         -metrics <file>    write the metrics of every phase to this file as JSON");
+            System.out.println("         -format <text/csv/binary>  format of the predictions, text by default");
+            System.out.println("         -out <file>        write the predictions to this file instead of standard output");
+            System.out.println("         -cache <entries>   cache the posteriors of this many distinct rows (-serve only)");
             System.exit(1);
         }
+        if (metricsFile != null)
+            writeMetricsOnExit(metricsFile);
 
         features = new ArrayList<>();
         classValues = new ArrayList<>();
 
-        ArrayList<Instance> trainingSet = readFile(args[0]);
-        ArrayList<Instance> testSet = readFile(args[1]);
+        if (serve) {
+            // Keep the loaded net in memory and score rows sent over HTTP until killed
+            try {
+                BayesNetwork bn = loadModel(args[1]);
+                if (cacheSize > 0)
+                    bn = new PosteriorCache(bn, cacheSize);
+                ScoringServer server = new ScoringServer(bn, features, classValues, Integer.parseInt(args[2]),
+                        1024, 1000, Runtime.getRuntime().availableProcessors());
+                server.start();
+                System.out.println("Scoring on http://localhost:" + args[2] + "/score, statistics on /stats");
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (crossValidate) {
+            crossValidate(Integer.parseInt(args[1]), args[2], args[3].trim(), hashBuckets);
+            return;
+        }
+
+        BayesNetwork bn = null;
+        if (load) {
+            // Query a net saved by an earlier run instead of training one
+            try {
+                bn = loadModel(args[1]);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                System.exit(1);
+            }
+        } else {
+            // Train straight off the training file, which is never held in memory
+            try (ArffReader trainingFile = new ArffReader(args[0], features, classValues, hashBuckets)) {
+                if (args[2].trim().equals("n"))
+                    bn = new NaiveBayes(classValues, features);
+                else if (args[2].trim().equals("t"))
+                    bn = new TAN(classValues, features);
+                if (bn != null) {
+                    try (Metrics.Span span = Metrics.phase("train.count")) {
+                        bn.train(trainingFile);
+                        span.rows(trainingFile.rows());
+                    }
+                    if (args.length == 4)
+                        saveModel(args[3], bn);
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                System.exit(1);
+            }
+        }
+        ArrayList<Instance> testSet = readFile(args[load ? 2 : 1]);
 
         int correct = 0;
-        if (args[2].trim().equals("n")) {
-            NaiveBayes naiveBayes = new NaiveBayes(classValues, features);
-            naiveBayes.train(trainingSet);
+        if (bn instanceof NaiveBayes) {
             for (Feature feature: features)
                 System.out.println(feature.featureName + " class");
             System.out.println();
-            correct = numberOfCorrectPredictions(naiveBayes, testSet);
-        } else if (args[2].trim().equals("t")) {
-            TAN tan = new TAN(classValues, features);
-            tan.train(trainingSet);
-            for (Node node: TAN.spanningTreeEdges) {
+            correct = numberOfCorrectPredictions(bn, testSet);
+        } else if (bn instanceof TAN) {
+            for (Node node: ((TAN) bn).spanningTree()) {
                 System.out.print(node.node.featureName);
                 if (node.parent != null)
                     System.out.print(" " + node.parent.node.featureName);
                 System.out.println(" class");
             }
             System.out.println();
-            correct += numberOfCorrectPredictions(tan, testSet);
+            correct += numberOfCorrectPredictions(bn, testSet);
         }
         System.out.println("\n" + correct);
     }
 
+    @SuppressWarnings("try")
+    private static void saveModel(String filename, BayesNetwork bn) throws IOException {
+        try (Metrics.Span span = Metrics.phase("model.save")) {
+            ModelFile.save(filename, bn, features, classValues);
+        }
+    }
+
+    @SuppressWarnings("try")
+    private static BayesNetwork loadModel(String filename) throws IOException {
+        try (Metrics.Span span = Metrics.phase("model.load")) {
+            return ModelFile.load(filename, features, classValues);
+        }
+    }
+
+    /**
+     * Turns on the metrics and writes them to a file when the JVM exits, which for a scoring
+     * server is when it is stopped
+     * @param filename The file to write the JSON summary to
+     */
+    private static void writeMetricsOnExit(String filename) {
+        Metrics.enable();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (FileOutputStream out = new FileOutputStream(filename)) {
+                out.write(Metrics.get().getJson().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }));
+    }
+
+    /**
+     * Runs a k-fold cross validation on one file and prints the accuracy of every fold
+     * @param numFolds Number of folds k
+     * @param filename The ARFF file to be cross validated on
+     * @param type n for Naive Bayes or t for TAN
+     * @param hashBuckets Number of buckets of hashed features, 0 to hash no feature
+     */
+    private static void crossValidate(int numFolds, String filename, String type, int hashBuckets) {
+        ArrayList<Instance> instances = null;
+        try (ArffReader file = new ArffReader(filename, features, classValues, hashBuckets);
+             Metrics.Span span = Metrics.phase("cv.parse")) {
+            instances = file.readAll();
+            span.rows(instances.size());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+        if (!type.equals("n") && !type.equals("t")) {
+            System.out.println("Unknown net type " + type + ", expected n or t");
+            System.exit(1);
+        }
+
+        CrossValidation cv = CrossValidation.run(instances, numFolds,
+                type.equals("n") ? new NaiveBayes(classValues, features) : new TAN(classValues, features));
+        for (int i = 0; i < numFolds; i++)
+            System.out.println("fold " + (i + 1) + " " + cv.correct[i] + " " + cv.sizes[i]);
+        System.out.println("\n" + new DecimalFormat("#.############").format(cv.accuracy()));
+    }
+
     private static int numberOfCorrectPredictions(BayesNetwork bn, ArrayList<Instance> testSet) {
         int correct = 0;
-        // Test the naive bayes net on the test set
-        for (Instance instance : testSet) {
-            double maxProbability = 0.0;
-            int classification = 0;
-            for (String classValue : classValues) {
-                double pr = bn.probabilityClassGivenFeatures(instance.features, classValue);
-                if (pr > maxProbability) {
-                    maxProbability = pr;
-                    classification = classValues.indexOf(classValue);
-                }
+        // Test the bayes net on the whole test set at once
+        BayesNetwork.Predictions predictions;
+        try (Metrics.Span span = Metrics.phase("score")) {
+            predictions = bn.classify(testSet);
+            span.rows(testSet.size());
+        }
+        // Standard output is written through System.out, which stays open for the lines after
+        try (Metrics.Span span = Metrics.phase("output");
+             FileChannel file = predictionFile == null ? null : FileChannel.open(Paths.get(predictionFile),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             PredictionSink sink = new PredictionSink(file != null ? file : Channels.newChannel(System.out),
+                     predictionFormat, classValues)) {
+            for (int i = 0; i < testSet.size(); i++) {
+                Instance instance = testSet.get(i);
+                int classification = predictions.labels[i];
+                if (classification == instance.classValue)
+                    correct++;
+                sink.write(classification, instance.classValue, instance.unknownClassValue,
+                        predictions.posteriors[i]);
             }
-
-            if (classification == classValues.indexOf(instance.classValue))
-                correct++;
-            System.out.println(classValues.get(classification) + " " + instance.classValue + " "
-                    + new DecimalFormat("#.############").format(maxProbability));
+            span.rows(testSet.size());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.exit(1);
         }
         return correct;
     }
 
     /**
-     * Reads the ARFF file and stores all attributes, their allowed values as well as all instances.
-     * It also differentiates between training and test set by checking if the feature vector has
-     * been initialized or not.
+     * Reads all instances of an ARFF file whose attributes have already been read from the
+     * training file
      * @param filename The ARFF file to be read
      * @return ArrayList of all instances in the file
      */
     private static ArrayList<Instance> readFile(String filename) {
-        Scanner file = null;
-        try {
-            file = new Scanner(new File(filename));
-        } catch (FileNotFoundException fnfe) {
-            fnfe.printStackTrace();
-        }
-        assert file != null;
-        ArrayList<Instance> instances = new ArrayList<>();
-        boolean isTraining = features.isEmpty();
-        while (file.hasNextLine()) {
-            String line = file.nextLine().trim();
-            if (line.charAt(0) == '%')
-                continue;
-            else if (line.charAt(0) == '@' && isTraining) {
-                if (line.contains("@relation") || line.contains("@data"))
-                    continue;
-                // Read the attributes
-                String[] values = line.split("\\s+", 3);
-                values[2] = values[2].trim();
-                values[2] = values[2].substring(1, values[2].length() - 1).trim();
-                String[] allowedValues = values[2].split("\\s*,\\s*");
-                if (!values[1].equals("'class'") && !values[1].equals("class")) {
-                    String featureName = values[1];
-                    if (values[2].charAt(0) == '\'' && values[2].charAt(values[2].length()) == '\'')
-                        featureName = featureName.substring(1, values[2].length() - 1).trim();
-                    features.add(new Feature(featureName, new ArrayList<>(Arrays.asList(allowedValues))));
-                }
-                else
-                    classValues.addAll(Arrays.asList(allowedValues));
-            } else if (line.charAt(0) != '@')
-                instances.add(new Instance(line.split("\\s*,\\s*")));
+        try (ArffReader file = new ArffReader(filename, features, classValues);
+             Metrics.Span span = Metrics.phase("test.parse")) {
+            ArrayList<Instance> instances = file.readAll();
+            span.rows(instances.size());
+            return instances;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.exit(1);
+            return null;
         }
-        return instances;
     }
 }
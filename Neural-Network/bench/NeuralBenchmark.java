@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how training throughput scales with the number of training threads. For every thread
+ * count the network is trained from the same initial weights, warmed up and then timed over
+ * several iterations. The report gives the mean time per epoch, the instances trained per second,
+ * the speedup over the first thread count and the accuracy on the training set, which shows
+ * whether updates lost between threads hurt the network.
+ *
+ * Usage: java -cp out:bench NeuralBenchmark [-data sonar.arff] [-threads 1,2,4,8] [-batch 1]
+ *        [-sync] [-epochs 10] [-replicate 1] [-warmup 1] [-iterations 3] [-csv]
+ *
+ * -sync trains with synchronous updates instead of Hogwild. -replicate repeats the training set
+ * to give every thread a longer slice.
+ */
+public class NeuralBenchmark {
+
+    // Written by every benchmark so the JIT cannot drop the work being measured
+    static volatile double sink;
+
+    public static void main(String[] args) {
+        String dataFile = "sonar.arff";
+        int[] threadCounts = {1, 2, 4, 8};
+        int batchSize = 1, epochs = 10, replicate = 1, warmupIterations = 1, measurementIterations = 3;
+        boolean synchronous = false, csv = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": dataFile = args[++i]; break;
+                case "-threads": threadCounts = parseList(args[++i]); break;
+                case "-batch": batchSize = Integer.parseInt(args[++i]); break;
+                case "-sync": synchronous = true; break;
+                case "-epochs": epochs = Integer.parseInt(args[++i]); break;
+                case "-replicate": replicate = Integer.parseInt(args[++i]); break;
+                case "-warmup": warmupIterations = Integer.parseInt(args[++i]); break;
+                case "-iterations": measurementIterations = Integer.parseInt(args[++i]); break;
+                case "-csv": csv = true; break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        if (batchSize > 1 && !synchronous && Arrays.stream(threadCounts).anyMatch(t -> t > 1)) {
+            System.out.println("Mini-batches are only trained on several threads with -sync");
+            System.exit(1);
+        }
+
+        Neuralnet.features = new ArrayList<>();
+        Neuralnet.classValues = new ArrayList<>();
+        ArrayList<Instance> data = Neuralnet.getData(dataFile);
+        ArrayList<Instance> trainingSet = new ArrayList<>(data.size() * replicate);
+        for (int i = 0; i < replicate; i++)
+            trainingSet.addAll(data);
+
+        Random r = new Random(42);
+        double[][] hiddenWeights = new double[Config.NUM_HIDDEN_NODES][data.get(0).attributes.size() + 1];
+        double[][] outputWeights = new double[Neuralnet.classValues.size()][Config.NUM_HIDDEN_NODES + 1];
+        for (double[] row : hiddenWeights)
+            for (int i = 0; i < row.length; i++)
+                row[i] = r.nextGaussian() * 0.01;
+        for (double[] row : outputWeights)
+            for (int i = 0; i < row.length; i++)
+                row[i] = r.nextGaussian() * 0.01;
+
+        Config.MAX_EPOCHS = epochs;
+        Config.BATCH_SIZE = batchSize;
+        Config.useSynchronousUpdates = synchronous;
+        Config.useEarlyStopping = false;
+        Config.useRandomSeed = true;
+
+        if (csv)
+            System.out.println("threads,batch,instances,epochs,iterations,mean_ms_per_epoch,stddev_ms,instances_per_s,speedup,accuracy");
+        double baseline = 0.0;
+        for (int numThreads : threadCounts) {
+            Config.NUM_THREADS = numThreads;
+            double[] times = new double[measurementIterations];
+            double accuracy = 0.0;
+            for (int i = -warmupIterations; i < measurementIterations; i++) {
+                NNImpl nn = new NNImpl(trainingSet, new ArrayList<>(), hiddenWeights, outputWeights);
+                long start = System.nanoTime();
+                nn.train();
+                if (i >= 0)
+                    times[i] = (System.nanoTime() - start) / 1e6 / epochs;
+                accuracy = nn.calculateAccuracy(data);
+                sink += accuracy;
+            }
+            double mean = Arrays.stream(times).average().orElse(0.0);
+            double variance = Arrays.stream(times).map(t -> (t - mean) * (t - mean)).sum()
+                    / Math.max(1, times.length - 1);
+            double throughput = trainingSet.size() / (mean / 1e3);
+            if (baseline == 0.0)
+                baseline = throughput;
+            if (csv)
+                System.out.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.3f,%.3f,%.1f,%.3f,%.4f",
+                        numThreads, batchSize, trainingSet.size(), epochs, times.length, mean,
+                        Math.sqrt(variance), throughput, throughput / baseline, accuracy));
+            else
+                System.out.println(String.format(Locale.ROOT,
+                        "threads=%-4d %12.3f ms/epoch  +- %-10.3f %14.1f inst/s  speedup %6.2fx  accuracy %.4f",
+                        numThreads, mean, Math.sqrt(variance), throughput, throughput / baseline, accuracy));
+        }
+        if (!csv)
+            System.out.println(Runtime.getRuntime().availableProcessors() + " available processors");
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+}
@@ -0,0 +1,129 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads an ARFF file line by line from a memory-mapped buffer. Data rows are split into their
+ * values by scanning the bytes for commas, without regular expressions.
+ */
+
+class ArffReader implements Closeable {
+
+    /* Largest region of the file mapped at once */
+    private static final long MAP_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+
+    /* The current line and the bounds of its contents without surrounding whitespace */
+    private byte[] line = new byte[256];
+    private int start, end;
+
+    /**
+     * Opens the file and maps its first region
+     *
+     * @param filename The filename of the file with all the data
+     */
+    ArffReader(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        fileSize = channel.size();
+        map(0);
+    }
+
+    /**
+     * Moves to the next line of the file that is not blank
+     *
+     * @return false if the end of the file has been reached
+     */
+    boolean readLine() throws IOException {
+        while (true) {
+            int length = 0;
+            boolean read = false;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    long next = bufferStart + buffer.limit();
+                    if (next >= fileSize)
+                        break;
+                    map(next);
+                }
+                read = true;
+                byte b = buffer.get();
+                if (b == '\n')
+                    break;
+                if (length == line.length)
+                    line = Arrays.copyOf(line, line.length * 2);
+                line[length++] = b;
+            }
+            if (!read)
+                return false;
+
+            start = 0;
+            end = length;
+            while (start < end && line[start] <= ' ')
+                start++;
+            while (end > start && line[end - 1] <= ' ')
+                end--;
+            if (start < end)
+                return true;
+        }
+    }
+
+    /**
+     * Returns the first character of the current line
+     */
+    char firstChar() {
+        return (char) line[start];
+    }
+
+    /**
+     * Returns the current line as a String, without surrounding whitespace
+     */
+    String line() {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits the current line at commas, trimming the whitespace around every value
+     *
+     * @return The values of the current line
+     */
+    String[] splitValues() {
+        int count = 1;
+        for (int i = start; i < end; i++)
+            if (line[i] == ',')
+                count++;
+
+        String[] values = new String[count];
+        int from = start;
+        for (int v = 0; v < count; v++) {
+            int to = from;
+            while (to < end && line[to] != ',')
+                to++;
+            int valueStart = from, valueEnd = to;
+            while (valueStart < valueEnd && line[valueStart] <= ' ')
+                valueStart++;
+            while (valueEnd > valueStart && line[valueEnd - 1] <= ' ')
+                valueEnd--;
+            values[v] = new String(line, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+            from = to + 1;
+        }
+        return values;
+    }
+
+    private void map(long position) throws IOException {
+        bufferStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, fileSize - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.Random;
+
 /**
  * This class contains the configuration of the neural network
  *
@@ -14,6 +16,22 @@ class Config {
     static int NUM_FOLDS = 10;
     /* The maximum number of epochs */
     static int MAX_EPOCHS = 50;
+    /* The number of instances whose gradients are summed before the weights are updated, 1 updates
+       the weights after every instance */
+    static int BATCH_SIZE = 1;
+    /* The number of threads training the network at once. With a batch size of 1 every thread
+       trains on its own slice of the training set and updates the shared weights without locks.
+       Larger batches need synchronous updates to be trained on more than one thread */
+    static int NUM_THREADS = 1;
+    /* Whether the threads train on every mini-batch together and combine their gradients before
+       each update, which gives the same weights for any number of threads */
+    static boolean useSynchronousUpdates = false;
+    /* Whether the fold split, the initial weights and the dropout masks are drawn from RANDOM_SEED,
+       so runs with the same seed give the same network unless several threads train it Hogwild
+       style. Off by default, so every run draws them anew */
+    static boolean useRandomSeed = false;
+    /* The seed of all random choices when useRandomSeed is on */
+    static long RANDOM_SEED = 1;
 
     /* Whether to use early stopping or not */
     static boolean useEarlyStopping = false;
@@ -32,11 +50,15 @@ class Config {
     /* The hidden masking probability threshold for dropout */
     static double HIDDEN_MASKING_PROB = 0.5;
 
-    /* The types of nodes in the neural network */
-    static final int INPUT = 0;
-    static final int INPUT_BIAS = 1;
-    static final int HIDDEN = 2;
-    static final int HIDDEN_BIAS = 3;
-    static final int OUTPUT = 4;
+    /**
+     * Creates a random generator, seeded from RANDOM_SEED plus the given offset if useRandomSeed is
+     * on and unseeded otherwise
+     *
+     * @param offset Added to the seed, so generators of different threads draw different numbers
+     * @return The generator
+     */
+    static Random newRandom(long offset) {
+        return useRandomSeed ? new Random(RANDOM_SEED + offset) : new Random();
+    }
 
 }
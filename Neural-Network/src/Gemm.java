@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * Dense matrix-matrix product C = op(A) * op(B) on row-major double arrays, where op transposes
+ * its matrix or leaves it as it is. The product is blocked so that a block of B stays in cache
+ * while every block of A is multiplied with it. Both blocks are first packed into contiguous
+ * panels of MR rows and NR columns, and a micro kernel keeps an MR x NR tile of C in local
+ * variables while it runs along the shared dimension.
+ *
+ * The packing buffers belong to the instance, so one instance must not be used by two threads
+ * at once.
+ */
+
+class Gemm {
+
+    /* Size of the register tile of C */
+    private static final int MR = 4, NR = 4;
+    /* Rows of A, length of the shared dimension and columns of B packed at once */
+    private static final int MC = 64, KC = 256, NC = 1024;
+
+    private final double[] packedA = new double[MC * KC];
+    private final double[] packedB = new double[KC * NC];
+    /* Tile of C at the bottom or right edge, where only part of the tile lies inside C */
+    private final double[] edgeTile = new double[MR * NR];
+
+    /**
+     * Computes C = op(A) * op(B), or adds the product to C
+     *
+     * @param transA     Whether op(A) is the transpose of A
+     * @param transB     Whether op(B) is the transpose of B
+     * @param m          Number of rows of op(A) and C
+     * @param n          Number of columns of op(B) and C
+     * @param k          Number of columns of op(A) and rows of op(B)
+     * @param a          The matrix A, row-major with lda elements per row
+     * @param b          The matrix B, row-major with ldb elements per row
+     * @param c          The matrix C, row-major with ldc elements per row
+     * @param accumulate Whether to add the product to C instead of overwriting it
+     */
+    void multiply(boolean transA, boolean transB, int m, int n, int k,
+                  double[] a, int lda, double[] b, int ldb, double[] c, int ldc, boolean accumulate) {
+        if (!accumulate)
+            for (int i = 0; i < m; i++)
+                Arrays.fill(c, i * ldc, i * ldc + n, 0.0);
+
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+                packB(transB, b, ldb, pc, jc, kc, nc);
+                for (int ic = 0; ic < m; ic += MC) {
+                    int mc = Math.min(MC, m - ic);
+                    packA(transA, a, lda, ic, pc, mc, kc);
+                    for (int jr = 0; jr < nc; jr += NR)
+                        for (int ir = 0; ir < mc; ir += MR)
+                            microKernel(kc, ir * kc, jr * kc, c, ldc, ic + ir, jc + jr,
+                                    Math.min(MR, mc - ir), Math.min(NR, nc - jr));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies op(A)[row, row + mc) x [col, col + kc) into panels of MR rows, each stored column by
+     * column, padding the last panel with zeros
+     */
+    private void packA(boolean transA, double[] a, int lda, int row, int col, int mc, int kc) {
+        for (int ir = 0; ir < mc; ir += MR) {
+            int panel = ir * kc;
+            for (int r = 0; r < MR; r++) {
+                int i = row + ir + r;
+                if (ir + r >= mc) {
+                    for (int p = 0; p < kc; p++)
+                        packedA[panel + p * MR + r] = 0.0;
+                } else if (transA) {
+                    for (int p = 0; p < kc; p++)
+                        packedA[panel + p * MR + r] = a[(col + p) * lda + i];
+                } else {
+                    for (int p = 0, index = i * lda + col; p < kc; p++, index++)
+                        packedA[panel + p * MR + r] = a[index];
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies op(B)[row, row + kc) x [col, col + nc) into panels of NR columns, each stored row by
+     * row, padding the last panel with zeros
+     */
+    private void packB(boolean transB, double[] b, int ldb, int row, int col, int kc, int nc) {
+        for (int jr = 0; jr < nc; jr += NR) {
+            int panel = jr * kc;
+            for (int s = 0; s < NR; s++) {
+                int j = col + jr + s;
+                if (jr + s >= nc) {
+                    for (int p = 0; p < kc; p++)
+                        packedB[panel + p * NR + s] = 0.0;
+                } else if (transB) {
+                    for (int p = 0, index = j * ldb + row; p < kc; p++, index++)
+                        packedB[panel + p * NR + s] = b[index];
+                } else {
+                    for (int p = 0; p < kc; p++)
+                        packedB[panel + p * NR + s] = b[(row + p) * ldb + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies a packed panel of A with a packed panel of B and adds the MR x NR tile to
+     * C[row, row + mr) x [col, col + nr)
+     */
+    private void microKernel(int kc, int aOffset, int bOffset, double[] c, int ldc, int row, int col,
+                             int mr, int nr) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+        for (int p = 0, ai = aOffset, bi = bOffset; p < kc; p++, ai += MR, bi += NR) {
+            double a0 = packedA[ai], a1 = packedA[ai + 1], a2 = packedA[ai + 2], a3 = packedA[ai + 3];
+            double b0 = packedB[bi], b1 = packedB[bi + 1], b2 = packedB[bi + 2], b3 = packedB[bi + 3];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+        }
+        if (mr == MR && nr == NR) {
+            int r0 = row * ldc + col, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+            c[r0] += c00; c[r0 + 1] += c01; c[r0 + 2] += c02; c[r0 + 3] += c03;
+            c[r1] += c10; c[r1 + 1] += c11; c[r1 + 2] += c12; c[r1 + 3] += c13;
+            c[r2] += c20; c[r2 + 1] += c21; c[r2 + 2] += c22; c[r2 + 3] += c23;
+            c[r3] += c30; c[r3 + 1] += c31; c[r3 + 2] += c32; c[r3 + 3] += c33;
+            return;
+        }
+        double[] tile = edgeTile;
+        tile[0] = c00; tile[1] = c01; tile[2] = c02; tile[3] = c03;
+        tile[4] = c10; tile[5] = c11; tile[6] = c12; tile[7] = c13;
+        tile[8] = c20; tile[9] = c21; tile[10] = c22; tile[11] = c23;
+        tile[12] = c30; tile[13] = c31; tile[14] = c32; tile[15] = c33;
+        for (int r = 0; r < mr; r++)
+            for (int s = 0; s < nr; s++)
+                c[(row + r) * ldc + col + s] += tile[r * NR + s];
+    }
+
+}
@@ -1,26 +1,88 @@
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 
 /**
  * This class contains the functions relevant to the implementation of a single hidden layer
- * neural network
+ * neural network. The weights of each layer are kept in one flat row-major matrix and the outputs
+ * of each layer in one array, so the forward and backward passes are dense matrix-vector loops.
+ * The last input and the last hidden output are the bias, which is always 1.
+ *
+ * With a batch size above 1 the network is trained on mini-batches instead. The instances of a
+ * batch are the rows of an input matrix, and both passes over the batch are products of that
+ * matrix with the weight matrices, computed by a cache blocked kernel.
+ *
+ * With more than one thread and a batch size of 1 the network is trained Hogwild style: every
+ * thread trains on its own slice of the training set in its own workspace, and updates the shared
+ * weights right away without any locking. Updates of different threads may overwrite each other,
+ * which costs little as long as most updates touch different weights, as with dropout or sparse
+ * inputs. Doubles are written atomically by 64 bit JVMs, so weights never hold torn values.
+ *
+ * With synchronous updates every mini-batch is cut into chunks of a fixed size, and the threads
+ * take turns computing the gradient of each chunk into a buffer of its own. Once all chunks are
+ * done the buffers are summed pairwise in a fixed tree order and the weights are updated once.
+ * Neither the chunks nor the order of the sums depend on the number of threads, and the dropout
+ * masks are drawn by one generator in a fixed order, so with a fixed seed the weights are the same
+ * bits for any number of threads.
+ * Without synchronous updates mini-batches are trained on one thread only, so other thread counts
+ * are rejected.
+ *
+ * The training threads besides the caller are started once per call of train and run the work
+ * of every epoch.
  *
  * @author Sahib Singh Pandori
  */
 
 public class NNImpl {
 
-    /* Create list of nodes for each layer*/
-    private ArrayList<Node> inputNodes = null;
-    private ArrayList<Node> hiddenNodes = null;
-    private ArrayList<Node> outputNodes = null;
+    /* Number of nodes in each layer, including the bias nodes of the input and hidden layers */
+    private final int numInputs;
+    private final int numHidden;
+    private final int numOutputs;
+
+    /* Weights from input to hidden layer, indexed by [hidden * numInputs + input] */
+    private final double[] hiddenWeights;
+    /* Weights from hidden to output layer, indexed by [output * numHidden + hidden] */
+    private final double[] outputWeights;
+
+    /* Buffers for passing instances through the network and training on them */
+    private final Workspace workspace;
+    /* Number of threads training the network at once */
+    private final int numThreads;
+    /* Workspaces of the Hogwild training threads, the first of which is the workspace of the
+       network */
+    private final Workspace[] workspaces;
+    /* Runs the work of every training thread but the first while the network is trained on
+       several threads, null otherwise */
+    private ExecutorService workers;
 
     /* Create list of proteins for training and tuning on the network*/
     public ArrayList<Instance> trainingSet = null;
     private ArrayList<Instance> tuningSet = null;
 
     /* Store the weights that performed best on the tuning set*/
-    private double[][] bestHiddenWeights;
-    private double[][] bestOutputWeights;
+    private double[] bestHiddenWeights;
+    private double[] bestOutputWeights;
+
+    /* Number of instances per weight update */
+    private final int batchSize;
+    /* Whether the threads combine their gradients before every update */
+    private final boolean synchronous;
+    /* Number of instances whose gradient is computed at once with synchronous updates */
+    private static final int CHUNK_SIZE = 16;
+    /* Buffers for mini-batch training, one per training thread, or null if the network is
+       trained one instance at a time */
+    private final BatchWorkspace[] batchWorkspaces;
+    /* Gradients summed over each chunk of a batch, laid out like the weights. Without
+       synchronous updates the whole batch is a single chunk. */
+    private final double[][] gradientOutput;
+    private final double[][] gradientHidden;
 
 
     /**
@@ -36,49 +98,114 @@ public class NNImpl {
         this.trainingSet = trainingSet;
         this.tuningSet = tuningSet;
 
-        // input layer nodes
-        inputNodes = new ArrayList<>();
-        int inputNodeCount = trainingSet.get(0).attributes.size();
-        int outputNodeCount = Neuralnet.classValues.size();
-        for (int i = 0; i < inputNodeCount; i++) {
-            Node node = new Node(0);
-            inputNodes.add(node);
+        // Every layer but the output layer has a bias node at its end
+        numInputs = trainingSet.get(0).attributes.size() + 1;
+        numHidden = Config.NUM_HIDDEN_NODES + 1;
+        numOutputs = Neuralnet.classValues.size();
+
+        this.hiddenWeights = new double[(numHidden - 1) * numInputs];
+        for (int i = 0; i < numHidden - 1; i++)
+            System.arraycopy(hiddenWeights[i], 0, this.hiddenWeights, i * numInputs, numInputs);
+        this.outputWeights = new double[numOutputs * numHidden];
+        for (int i = 0; i < numOutputs; i++)
+            System.arraycopy(outputWeights[i], 0, this.outputWeights, i * numHidden, numHidden);
+
+        batchSize = Math.max(1, Config.BATCH_SIZE);
+        numThreads = Math.max(1, Config.NUM_THREADS);
+        synchronous = Config.useSynchronousUpdates;
+        if (numThreads > 1 && batchSize > 1 && !synchronous)
+            throw new IllegalArgumentException("Mini-batches of " + batchSize + " instances can only be trained on "
+                    + numThreads + " threads with synchronous updates");
+
+        workspace = new Workspace(Config.newRandom(0));
+        workspaces = new Workspace[batchSize == 1 && !synchronous ? numThreads : 1];
+        workspaces[0] = workspace;
+        for (int i = 1; i < workspaces.length; i++)
+            workspaces[i] = new Workspace(Config.newRandom(i));
+
+        bestHiddenWeights = new double[this.hiddenWeights.length];
+        bestOutputWeights = new double[this.outputWeights.length];
+
+        int numChunks = 0;
+        if (synchronous) {
+            batchWorkspaces = new BatchWorkspace[numThreads];
+            for (int i = 0; i < numThreads; i++)
+                batchWorkspaces[i] = new BatchWorkspace(Math.min(CHUNK_SIZE, batchSize));
+            numChunks = (batchSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        } else if (batchSize > 1) {
+            batchWorkspaces = new BatchWorkspace[]{new BatchWorkspace(batchSize)};
+            numChunks = 1;
+        } else {
+            batchWorkspaces = null;
         }
+        gradientOutput = new double[numChunks][this.outputWeights.length];
+        gradientHidden = new double[numChunks][this.hiddenWeights.length];
+    }
 
-        // bias node from input layer to hidden
-        Node biasToHidden = new Node(1);
-        inputNodes.add(biasToHidden);
-
-        // hidden layer nodes
-        hiddenNodes = new ArrayList<>();
-        for (int i = 0; i < Config.NUM_HIDDEN_NODES; i++) {
-            Node node = new Node(2);
-            // Connecting hidden layer nodes with input layer nodes
-            for (int j = 0; j < inputNodes.size(); j++) {
-                NodeWeightPair nwp = new NodeWeightPair(inputNodes.get(j), hiddenWeights[i][j]);
-                node.parents.add(nwp);
-            }
-            hiddenNodes.add(node);
+
+    /**
+     * Buffers for passing one instance through the network and training on it, allocated once so
+     * that training allocates nothing per instance. The momentum history lives here as well, and
+     * carries over from one instance to the next.
+     */
+    private class Workspace {
+
+        /* Outputs of each layer for the last instance passed through the network */
+        final double[] inputs = new double[numInputs];
+        final double[] hiddenOutputs = new double[numHidden];
+        final double[] outputs = new double[numOutputs];
+
+        /* Errors of the output nodes, and deltas of the weights laid out like the weights */
+        final double[] error = new double[numOutputs];
+        final double[] errorOutput = new double[outputWeights.length];
+        final double[] errorHidden = new double[hiddenWeights.length];
+        /* Deltas for (n-1)th iteration, used with momentum term */
+        final double[] predErrorOutput = new double[outputWeights.length];
+        final double[] predErrorHidden = new double[hiddenWeights.length];
+
+        /* Dropout masks, left all false if dropout is not used */
+        final boolean[] inputMask = new boolean[numInputs];
+        final boolean[] hiddenMask = new boolean[numHidden];
+        final Random random;
+
+        Workspace(Random random) {
+            this.random = random;
+            inputs[numInputs - 1] = 1.0;
+            hiddenOutputs[numHidden - 1] = 1.0;
         }
 
-        // bias node from hidden layer to output
-        Node biasToOutput = new Node(3);
-        hiddenNodes.add(biasToOutput);
-
-        // Output node layer
-        outputNodes = new ArrayList<>();
-        for (int i = 0; i < outputNodeCount; i++) {
-            Node node = new Node(4);
-            // Connecting output layer nodes with hidden layer nodes
-            for (int j = 0; j < hiddenNodes.size(); j++) {
-                NodeWeightPair nwp = new NodeWeightPair(hiddenNodes.get(j), outputWeights[i][j]);
-                node.parents.add(nwp);
+    }
+
+
+    /**
+     * Kernel and buffers for passing a batch of instances through the network at once, with one
+     * row per instance. Each training thread needs its own.
+     */
+    private class BatchWorkspace {
+
+        final Gemm gemm = new Gemm();
+        /* Outputs of each layer, with the bias columns of the inputs and hidden outputs at 1 */
+        final double[] inputs;
+        final double[] hiddenOutputs;
+        final double[] outputs;
+        final double[] targets;
+        /* Errors of the output and hidden nodes, not including the hidden bias */
+        final double[] outputErrors;
+        final double[] hiddenErrors;
+
+        BatchWorkspace(int capacity) {
+            inputs = new double[capacity * numInputs];
+            hiddenOutputs = new double[capacity * numHidden];
+            for (int b = 0; b < capacity; b++) {
+                inputs[b * numInputs + numInputs - 1] = 1.0;
+                hiddenOutputs[b * numHidden + numHidden - 1] = 1.0;
             }
-            outputNodes.add(node);
+            outputs = new double[capacity * numOutputs];
+            targets = new double[capacity * numOutputs];
+            outputErrors = new double[capacity * numOutputs];
+            hiddenErrors = new double[capacity * (numHidden - 1)];
         }
 
-        bestHiddenWeights = new double[hiddenWeights[0].length][hiddenWeights.length];
-        bestOutputWeights = new double[outputWeights[0].length][outputWeights.length];
     }
 
 
@@ -91,24 +218,44 @@ public class NNImpl {
      * @param inst The instance for which the output is calculated
      */
     double[] calculateOutputForInstance(Instance inst) {
-        for (int i = 0; i < inst.attributes.size(); i++)
-            inputNodes.get(i).setInput(inst.attributes.get(i));
+        forward(inst, workspace);
+        return workspace.outputs.clone();
+    }
 
-        inputNodes.get(inst.attributes.size()).setInput(1.0);
 
-        for (Node hiddenNode : hiddenNodes)
-            hiddenNode.calculateOutput();
+    /**
+     * Passes an instance through the network, leaving the outputs of each layer in a workspace
+     *
+     * @param inst The instance to pass through the network
+     * @param ws   The workspace to store the outputs in
+     */
+    private void forward(Instance inst, Workspace ws) {
+        for (int i = 0; i < numInputs - 1; i++)
+            ws.inputs[i] = inst.attributes.get(i);
 
-        hiddenNodes.get(hiddenNodes.size() - 1).setInput(1.0);
+        layerOutputs(hiddenWeights, ws.inputs, ws.hiddenOutputs, numHidden - 1);
+        layerOutputs(outputWeights, ws.hiddenOutputs, ws.outputs, numOutputs);
+    }
 
-        for (Node outputNode : outputNodes)
-            outputNode.calculateOutput();
 
-        double[] output = new double[outputNodes.size()];
-        for (int i = 0; i < outputNodes.size(); i++) {
-            output[i] = outputNodes.get(i).getOutput();
+    /**
+     * Computes the sigmoid outputs of a layer as the product of its weight matrix with the outputs
+     * of the layer below
+     *
+     * @param weights    The weights of the layer, one row of below.length weights per node
+     * @param below      Outputs of the layer below, including its bias
+     * @param outputs    Array to store the outputs of the layer in
+     * @param numNodes   Number of nodes of the layer, not including its bias
+     */
+    private static void layerOutputs(double[] weights, double[] below, double[] outputs, int numNodes) {
+        int width = below.length;
+        for (int node = 0, row = 0; node < numNodes; node++, row += width) {
+            double sum = 0.0;
+            for (int i = 0; i < width; i++)
+                sum += weights[row + i] * below[i];
+            // Sigmoid activation function
+            outputs[node] = 1.0 / (1.0 + Math.exp(-1.0 * sum));
         }
-        return output;
     }
 
 
@@ -117,64 +264,324 @@ public class NNImpl {
      *
      * @param mask        Array to store whether a node is masked or not
      * @param maskingProb The threshold to decide whether to mask a node or not
+     * @param random      The random number generator to draw from
      */
-    private void addMask(boolean[] mask, double maskingProb) {
-        Random r = new Random();
+    private static void addMask(boolean[] mask, double maskingProb, Random random) {
         for (int node = 0; node < mask.length; node++)
-            mask[node] = (r.nextDouble() >= maskingProb);
+            mask[node] = (random.nextDouble() >= maskingProb);
     }
 
 
     /**
      * Computes the errors in the outputs as well as the deltas for all the
-     * weights in the network
+     * weights in the network. The deltas are laid out like the weights they belong to, and are
+     * left in the workspace together with the errors.
      *
-     * @param error       Error between output of network and instance
-     * @param errorOutput Deltas of edge weights between hidden layer and output layer
-     * @param errorHidden Deltas of edge weights between input layer and hidden layer
-     * @param inputMask   Stores values corresponding to whether a input node is masked or not
-     * @param hiddenMask  Stores values corresponding to whether a hidden node is masked or not
-     * @param inst        Instance on which the errors are being calculated
+     * @param ws   Workspace holding the outputs of the network for the instance and its masks
+     * @param inst Instance on which the errors are being calculated
+     * @param beta The beta value for the momentum term
      */
-    private void computeErrors(double[] error, double[][] errorOutput, double[][] errorHidden,
-                               boolean[] inputMask, boolean[] hiddenMask, Instance inst,
-                               double[][] predErrorHidden, double[][] predErrorOutput, double beta) {
-        for (int j = 0; j < error.length; j++) {
-            double output = outputNodes.get(j).getOutput();
+    private void computeErrors(Workspace ws, Instance inst, double beta) {
+        double[] error = ws.error, errorOutput = ws.errorOutput, errorHidden = ws.errorHidden;
+        double[] predErrorOutput = ws.predErrorOutput, predErrorHidden = ws.predErrorHidden;
+        double[] inputs = ws.inputs, hiddenOutputs = ws.hiddenOutputs, outputs = ws.outputs;
+        boolean[] inputMask = ws.inputMask, hiddenMask = ws.hiddenMask;
+        for (int j = 0; j < numOutputs; j++) {
+            double output = outputs[j];
             error[j] = (inst.classValues.get(j) - output) * output * (1 - output);
         }
 
         // Computing error in hidden to output weights
-        for (int j = 0; j < hiddenNodes.size(); j++) {
-            if (!hiddenMask[j])
-                for (int k = 0; k < outputNodes.size(); k++) {
-                    errorOutput[j][k] = (Config.learningRate * hiddenNodes.get(j).getOutput() * error[k]);
+        for (int k = 0; k < numOutputs; k++)
+            for (int j = 0, index = k * numHidden; j < numHidden; j++, index++)
+                if (!hiddenMask[j]) {
+                    errorOutput[index] = (Config.learningRate * hiddenOutputs[j] * error[k]);
+                    if (Config.useMomentumTerm) {
+                        errorOutput[index] += (beta * predErrorOutput[index]);
+                        predErrorOutput[index] = errorOutput[index];
+                    }
+                }
+
+        // Computing the error in input to hidden weights, whose last row belongs to the bias and
+        // is never used
+        for (int j = 0; j < numHidden - 1; j++) {
+            if (hiddenMask[j])
+                continue;
+            double sigma = 0.0;
+            for (int k = 0; k < numOutputs; k++)
+                sigma += outputWeights[k * numHidden + j] * error[k];
+
+            double output = hiddenOutputs[j];
+            for (int a = 0, index = j * numInputs; a < numInputs; a++, index++)
+                if (!inputMask[a]) {
+                    errorHidden[index] = (Config.learningRate * inputs[a] * sigma * output * (1 - output));
+
                     if (Config.useMomentumTerm) {
-                        errorOutput[j][k] += (beta * predErrorOutput[j][k]);
-                        predErrorOutput[j][k] = errorOutput[j][k];
+                        errorHidden[index] += (beta * predErrorHidden[index]);
+                        predErrorHidden[index] = errorHidden[index];
                     }
                 }
         }
+    }
 
-        // Computing the error in input to hidden weights
-        for (int a = 0; a < inputNodes.size(); a++) {
-            if (!inputMask[a])
-                for (int j = 0; j < hiddenNodes.size(); j++)
-                    if (!hiddenMask[j]) {
-                        double sigma = 0.0;
-                        for (int k = 0; k < outputNodes.size(); k++) {
-                            sigma += outputNodes.get(k).parents.get(j).weight * error[k];
-                        }
 
-                        double output = hiddenNodes.get(j).getOutput();
-                        errorHidden[a][j] = (Config.learningRate * inputNodes.get(a).getOutput() * sigma * output * (1 - output));
+    /**
+     * Trains the network on the instances [from, from + size) of the training set with a single
+     * weight update. The weights move along the mean gradient of the batch, and one dropout mask
+     * is drawn for the whole batch.
+     *
+     * @param from The index of the first instance of the batch
+     * @param size The number of instances in the batch, at most batchSize
+     */
+    private void trainBatch(int from, int size) {
+        computeGradients(batchWorkspaces[0], trainingSet, from, size, gradientOutput[0], gradientHidden[0]);
+        applyGradients(gradientOutput[0], gradientHidden[0], size);
+    }
+
+
+    /**
+     * Passes the instances [from, from + size) through the network and sums the gradients of the
+     * weights over them
+     *
+     * @param bw             The batch workspace to compute in, with room for size instances
+     * @param instances      The instances to train on
+     * @param from           The index of the first instance
+     * @param size           The number of instances
+     * @param gradientOutput Array to store the gradients of the hidden to output layer weights in
+     * @param gradientHidden Array to store the gradients of the input to hidden layer weights in
+     */
+    private void computeGradients(BatchWorkspace bw, ArrayList<Instance> instances, int from, int size,
+                                  double[] gradientOutput, double[] gradientHidden) {
+        int numHiddenNodes = numHidden - 1;
+        for (int b = 0; b < size; b++) {
+            Instance inst = instances.get(from + b);
+            for (int i = 0, index = b * numInputs; i < numInputs - 1; i++, index++)
+                bw.inputs[index] = inst.attributes.get(i);
+            for (int k = 0, index = b * numOutputs; k < numOutputs; k++, index++)
+                bw.targets[index] = inst.classValues.get(k);
+        }
+
+        // Forward pass, the bias column of the hidden outputs is left at 1
+        bw.gemm.multiply(false, true, size, numHiddenNodes, numInputs, bw.inputs, numInputs,
+                hiddenWeights, numInputs, bw.hiddenOutputs, numHidden, false);
+        for (int b = 0; b < size; b++)
+            for (int j = 0, index = b * numHidden; j < numHiddenNodes; j++, index++)
+                bw.hiddenOutputs[index] = 1.0 / (1.0 + Math.exp(-1.0 * bw.hiddenOutputs[index]));
+        bw.gemm.multiply(false, true, size, numOutputs, numHidden, bw.hiddenOutputs, numHidden,
+                outputWeights, numHidden, bw.outputs, numOutputs, false);
+        for (int index = 0; index < size * numOutputs; index++) {
+            double output = 1.0 / (1.0 + Math.exp(-1.0 * bw.outputs[index]));
+            bw.outputs[index] = output;
+            bw.outputErrors[index] = (bw.targets[index] - output) * output * (1 - output);
+        }
+
+        // Backward pass, the errors of the hidden nodes are taken with the weights before the update
+        bw.gemm.multiply(false, false, size, numHiddenNodes, numOutputs, bw.outputErrors, numOutputs,
+                outputWeights, numHidden, bw.hiddenErrors, numHiddenNodes, false);
+        for (int b = 0; b < size; b++)
+            for (int j = 0; j < numHiddenNodes; j++) {
+                double output = bw.hiddenOutputs[b * numHidden + j];
+                bw.hiddenErrors[b * numHiddenNodes + j] *= output * (1 - output);
+            }
 
-                        if (Config.useMomentumTerm) {
-                            errorHidden[a][j] += (beta * predErrorHidden[a][j]);
-                            predErrorHidden[a][j] = errorHidden[a][j];
+        // Gradients summed over the instances, laid out like the weights
+        bw.gemm.multiply(true, false, numOutputs, numHidden, size, bw.outputErrors, numOutputs,
+                bw.hiddenOutputs, numHidden, gradientOutput, numHidden, false);
+        bw.gemm.multiply(true, false, numHiddenNodes, numInputs, size, bw.hiddenErrors, numHiddenNodes,
+                bw.inputs, numInputs, gradientHidden, numInputs, false);
+    }
+
+
+    /**
+     * Updates the weights once along the mean of summed gradients, with one dropout mask for the
+     * whole update. The gradients are turned into the deltas of the weights in place.
+     *
+     * @param gradientOutput Gradients of the hidden to output layer weights
+     * @param gradientHidden Gradients of the input to hidden layer weights
+     * @param size           The number of instances the gradients were summed over
+     */
+    private void applyGradients(double[] gradientOutput, double[] gradientHidden, int size) {
+        int numHiddenNodes = numHidden - 1;
+        boolean[] inputMask = workspace.inputMask, hiddenMask = workspace.hiddenMask;
+        if (Config.useDropout) {
+            addMask(inputMask, Config.INPUT_MASKING_PROB, workspace.random);
+            addMask(hiddenMask, Config.HIDDEN_MASKING_PROB, workspace.random);
+        }
+
+        double rate = Config.learningRate / size;
+        for (int k = 0; k < numOutputs; k++)
+            for (int j = 0, index = k * numHidden; j < numHidden; j++, index++)
+                if (!hiddenMask[j])
+                    gradientOutput[index] = delta(rate * gradientOutput[index], workspace.predErrorOutput, index);
+        for (int j = 0; j < numHiddenNodes; j++)
+            if (!hiddenMask[j])
+                for (int a = 0, index = j * numInputs; a < numInputs; a++, index++)
+                    if (!inputMask[a])
+                        gradientHidden[index] = delta(rate * gradientHidden[index], workspace.predErrorHidden, index);
+
+        updateWeights(gradientOutput, gradientHidden, inputMask, hiddenMask);
+    }
+
+
+    /**
+     * Trains the network for one epoch with synchronous updates. Every thread computes the
+     * gradients of the chunks c with c mod numThreads equal to its index, and the last thread to
+     * finish a batch sums the chunk gradients and updates the weights before any thread moves on.
+     * A failing thread terminates the phaser, which releases all others.
+     */
+    private void trainSynchronous() {
+        ArrayList<Instance> instances = trainingSet;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Phaser phaser = new Phaser(numThreads) {
+            @Override
+            protected boolean onAdvance(int phase, int registeredParties) {
+                try {
+                    int size = Math.min(batchSize, instances.size() - phase * batchSize);
+                    int numChunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                    // Pairwise sums in a fixed order, leaving the total in the first chunk
+                    for (int stride = 1; stride < numChunks; stride *= 2)
+                        for (int c = 0; c + stride < numChunks; c += 2 * stride) {
+                            add(gradientOutput[c], gradientOutput[c + stride]);
+                            add(gradientHidden[c], gradientHidden[c + stride]);
                         }
+                    applyGradients(gradientOutput[0], gradientHidden[0], size);
+                    return false;
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                    return true;
+                }
+            }
+        };
+
+        runOnAllThreads(worker -> {
+            try {
+                for (int from = 0; from < instances.size(); from += batchSize) {
+                    int size = Math.min(batchSize, instances.size() - from);
+                    for (int c = worker; c * CHUNK_SIZE < size; c += numThreads)
+                        computeGradients(batchWorkspaces[worker], instances, from + c * CHUNK_SIZE,
+                                Math.min(CHUNK_SIZE, size - c * CHUNK_SIZE), gradientOutput[c], gradientHidden[c]);
+                    if (phaser.arriveAndAwaitAdvance() < 0)
+                        return;
+                }
+            } catch (RuntimeException | Error e) {
+                phaser.forceTermination();
+                throw e;
+            }
+        });
+        if (failure.get() != null)
+            throw new IllegalStateException("Training thread failed", failure.get());
+    }
+
+
+    /**
+     * Adds an array to another element by element
+     *
+     * @param sum    The array to add to
+     * @param values The array to add
+     */
+    private static void add(double[] sum, double[] values) {
+        for (int i = 0; i < sum.length; i++)
+            sum[i] += values[i];
+    }
+
+
+    /**
+     * Adds the momentum term to the delta of a weight and remembers the result for the next batch
+     *
+     * @param delta     The delta of the weight from the gradient alone
+     * @param predDelta Deltas of the previous batch
+     * @param index     The index of the weight
+     */
+    private static double delta(double delta, double[] predDelta, int index) {
+        if (Config.useMomentumTerm) {
+            delta += Config.beta * predDelta[index];
+            predDelta[index] = delta;
+        }
+        return delta;
+    }
+
+
+    /**
+     * Trains the network on a single instance, updating the weights right away
+     *
+     * @param inst The instance to train on
+     * @param ws   The workspace to train in
+     */
+    private void trainInstance(Instance inst, Workspace ws) {
+        // Get the output for the given training instance
+        forward(inst, ws);
+
+        if (Config.useDropout) {
+            // Randomly chooses to mask certain nodes and edges
+            addMask(ws.inputMask, Config.INPUT_MASKING_PROB, ws.random);
+            addMask(ws.hiddenMask, Config.HIDDEN_MASKING_PROB, ws.random);
+        }
+
+        // Computes the errors on instance based on the masks
+        computeErrors(ws, inst, Config.beta);
+
+        // Update all the weights
+        updateWeights(ws.errorOutput, ws.errorHidden, ws.inputMask, ws.hiddenMask);
+    }
+
+
+    /**
+     * Trains the network for one epoch on all training threads at once, each on its own slice of
+     * the training set, without locking the weights
+     */
+    private void trainHogwild() {
+        ArrayList<Instance> instances = trainingSet;
+        runOnAllThreads(worker -> trainSlice(instances, worker));
+    }
+
+
+    /**
+     * Runs a task once on every training thread and waits for all of them to finish. The calling
+     * thread runs the task of the first thread and the workers run the others.
+     *
+     * @param task The task, given the index of the thread it runs on
+     */
+    private void runOnAllThreads(IntConsumer task) {
+        List<Future<?>> futures = new ArrayList<>(numThreads - 1);
+        for (int i = 1; i < numThreads; i++) {
+            int worker = i;
+            futures.add(workers.submit(() -> task.accept(worker)));
+        }
+        Throwable failure = null;
+        try {
+            task.accept(0);
+        } finally {
+            try {
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null)
+                            failure = e.getCause();
                     }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while training", ie);
+            }
         }
+        if (failure != null)
+            throw new IllegalStateException("Training thread failed", failure);
+    }
+
+
+    /**
+     * Trains the network on the slice of the instances that belongs to a training thread
+     *
+     * @param instances The instances to train on
+     * @param worker    The index of the training thread and of its workspace
+     */
+    private void trainSlice(ArrayList<Instance> instances, int worker) {
+        int from = (int) ((long) instances.size() * worker / numThreads);
+        int to = (int) ((long) instances.size() * (worker + 1) / numThreads);
+        Workspace ws = workspaces[worker];
+        for (int i = from; i < to; i++)
+            trainInstance(instances.get(i), ws);
     }
 
 
@@ -186,22 +593,18 @@ public class NNImpl {
      * @param inputMask   stores values corresponding to whether a input node is masked or not
      * @param hiddenMask  stores values corresponding to whether a hidden node is masked or not
      */
-    private void updateWeights(double[][] errorOutput, double[][] errorHidden, boolean[] inputMask,
+    private void updateWeights(double[] errorOutput, double[] errorHidden, boolean[] inputMask,
                                boolean[] hiddenMask) {
-        for (int j = 0; j < hiddenNodes.size(); j++) {
-            if (!hiddenMask[j])
-                for (int k = 0; k < outputNodes.size(); k++) {
-                    outputNodes.get(k).parents.get(j).weight += errorOutput[j][k];
-                }
-        }
-
-        for (int j = 0; j < inputNodes.size(); j++) {
-            if (!inputMask[j])
-                for (int k = 0; k < hiddenNodes.size() - 1; k++)
-                    if (!hiddenMask[k]) {
-                        hiddenNodes.get(k).parents.get(j).weight += errorHidden[j][k];
-                    }
-        }
+        for (int k = 0; k < numOutputs; k++)
+            for (int j = 0, index = k * numHidden; j < numHidden; j++, index++)
+                if (!hiddenMask[j])
+                    outputWeights[index] += errorOutput[index];
+
+        for (int k = 0; k < numHidden - 1; k++)
+            if (!hiddenMask[k])
+                for (int j = 0, index = k * numInputs; j < numInputs; j++, index++)
+                    if (!inputMask[j])
+                        hiddenWeights[index] += errorHidden[index];
     }
 
     /**
@@ -237,14 +640,9 @@ public class NNImpl {
      * @param hiddenWeights The input to hidden layer edge weights
      * @param outputWeights The hidden to output layer edge weights
      */
-    private void saveWeights(double[][] hiddenWeights, double[][] outputWeights) {
-        for (int j = 0; j < inputNodes.size(); j++)
-            for (int k = 0; k < hiddenNodes.size() - 1; k++)
-                hiddenWeights[j][k] = hiddenNodes.get(k).parents.get(j).weight;
-
-        for (int j = 0; j < hiddenNodes.size(); j++)
-            for (int k = 0; k < outputNodes.size(); k++)
-                outputWeights[j][k] = outputNodes.get(k).parents.get(j).weight;
+    private void saveWeights(double[] hiddenWeights, double[] outputWeights) {
+        System.arraycopy(this.hiddenWeights, 0, hiddenWeights, 0, hiddenWeights.length);
+        System.arraycopy(this.outputWeights, 0, outputWeights, 0, outputWeights.length);
     }
 
 
@@ -254,14 +652,9 @@ public class NNImpl {
      * @param hiddenWeights The input to hidden layer edge weights
      * @param outputWeights The hidden to output layer edge weights
      */
-    private void restoreWeights(double[][] hiddenWeights, double[][] outputWeights) {
-        for (int j = 0; j < inputNodes.size(); j++)
-            for (int k = 0; k < hiddenNodes.size() - 1; k++)
-                hiddenNodes.get(k).parents.get(j).weight = hiddenWeights[j][k];
-
-        for (int j = 0; j < hiddenNodes.size(); j++)
-            for (int k = 0; k < outputNodes.size(); k++)
-                outputNodes.get(k).parents.get(j).weight = outputWeights[j][k];
+    private void restoreWeights(double[] hiddenWeights, double[] outputWeights) {
+        System.arraycopy(hiddenWeights, 0, this.hiddenWeights, 0, hiddenWeights.length);
+        System.arraycopy(outputWeights, 0, this.outputWeights, 0, outputWeights.length);
     }
 
 
@@ -270,6 +663,29 @@ public class NNImpl {
      * stored as attributes of this class
      */
     void train() {
+        if (numThreads > 1) {
+            AtomicInteger started = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(numThreads - 1, task -> {
+                Thread thread = new Thread(task, "training-" + started.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        try {
+            trainEpochs();
+        } finally {
+            if (workers != null) {
+                workers.shutdown();
+                workers = null;
+            }
+        }
+    }
+
+
+    /**
+     * Trains the network for the configured number of epochs, or until early stopping ends it
+     */
+    private void trainEpochs() {
         int epochsSinceLowerAccuracy = 0, numEpoch = 0;
         double prevBestAccuracy = 0.0;
 
@@ -277,34 +693,20 @@ public class NNImpl {
         while ((epochsSinceLowerAccuracy < Config.MAX_EPOCHS_SINCE_LOWER_ACCURACY && Config.useEarlyStopping) || numEpoch < Config.MAX_EPOCHS) {
             // Keeps track of number of epochs
             numEpoch++;
-            // Loops over all Instances in the training set
-            for (Instance trainingInstance : trainingSet) {
-                // Errors for (n-1)th iteration, used with momentum term
-                double[][] predErrorOutput = new double[hiddenNodes.size()][outputNodes.size()];
-                double[][] predErrorHidden = new double[inputNodes.size()][hiddenNodes.size()];
-
-                // Get the output for the given training instance
-                calculateOutputForInstance(trainingInstance);
-
-                double[][] errorOutput = new double[hiddenNodes.size()][outputNodes.size()];
-                double[][] errorHidden = new double[inputNodes.size()][hiddenNodes.size()];
-                double[] error = new double[outputNodes.size()];
-
-                boolean[] inputMask = new boolean[inputNodes.size()];
-                boolean[] hiddenMask = new boolean[hiddenNodes.size()];
-
-                if (Config.useDropout) {
-                    // Randomly chooses to mask certain nodes and edges
-                    addMask(inputMask, Config.INPUT_MASKING_PROB);
-                    addMask(hiddenMask, Config.HIDDEN_MASKING_PROB);
-                }
-
-                // Computes the errors on instance based on the masks
-                computeErrors(error, errorOutput, errorHidden, inputMask, hiddenMask,
-                        trainingInstance, predErrorHidden, predErrorOutput, Config.beta);
-
-                // Update all the weights
-                updateWeights(errorOutput, errorHidden, inputMask, hiddenMask);
+            if (synchronous) {
+                // All threads loop over the training set one batch at a time
+                trainSynchronous();
+            } else if (batchSize > 1) {
+                // Loops over the training set one batch at a time
+                for (int from = 0; from < trainingSet.size(); from += batchSize)
+                    trainBatch(from, Math.min(batchSize, trainingSet.size() - from));
+            } else if (numThreads > 1) {
+                // Every thread loops over its own slice of the training set
+                trainHogwild();
+            } else {
+                // Loops over all Instances in the training set
+                for (int i = 0; i < trainingSet.size(); i++)
+                    trainInstance(trainingSet.get(i), workspace);
             }
 
             // Get the accuracy on the tuning set to determine early stopping
@@ -1,5 +1,7 @@
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.*;
 
 /**
@@ -11,7 +13,7 @@ import java.util.*;
 public class Neuralnet {
 
     // Stores all features (i.e. feature names and allowed values)
-    private static ArrayList<Feature> features;
+    static ArrayList<Feature> features;
     // Stores all class values
     static ArrayList<String> classValues;
 
@@ -58,12 +60,13 @@ public class Neuralnet {
         }
 
         // Divide the training set into k-folds
+        Random random = Config.newRandom(0);
         for (int i = 0; i < Config.NUM_FOLDS; i++) {
             kFoldInstances.add(new ArrayList<>());
             for (int j = 0; j < instanceDistribution.size(); j++) {
                 int numInstances = (int) (classDistribution[j] / Config.NUM_FOLDS);
                 for (int k = 0; k < numInstances; k++) {
-                    kFoldInstances.get(i).add(instanceDistribution.get(j).remove((int) (Math.random() * instanceDistribution.get(j).size())));
+                    kFoldInstances.get(i).add(instanceDistribution.get(j).remove(random.nextInt(instanceDistribution.get(j).size())));
                 }
             }
         }
@@ -71,7 +74,7 @@ public class Neuralnet {
         int foldIndex = 0;
         for (int j = 0; j < instanceDistribution.size(); j++) {
             for (; foldIndex < Config.NUM_FOLDS && instanceDistribution.get(j).size() != 0; foldIndex++) {
-                kFoldInstances.get(foldIndex).add(instanceDistribution.get(j).remove((int) (Math.random() * instanceDistribution.get(j).size())));
+                kFoldInstances.get(foldIndex).add(instanceDistribution.get(j).remove(random.nextInt(instanceDistribution.get(j).size())));
             }
             foldIndex %= Config.NUM_FOLDS;
         }
@@ -86,7 +89,7 @@ public class Neuralnet {
             outputWeights[i] = new double[hiddenWeights.length + 1];
         }
 
-        readWeights(hiddenWeights, outputWeights);
+        readWeights(hiddenWeights, outputWeights, random);
 
         // Initialize the neural network
         NNImpl nn = new NNImpl(joinKMinus1Folds(kFoldInstances, 0), tuningSet, hiddenWeights, outputWeights);
@@ -101,10 +104,15 @@ public class Neuralnet {
         }
 
         testSet = trainingSet;
-        Collections.shuffle(testSet);
+        Collections.shuffle(testSet, random);
 
         int correct = 0, classification = 0, in = 0;
         double[] output;
+        // One line per instance, so collect them in a large buffer instead of flushing every line.
+        // Each line is built in a reused builder and its characters copied out into a reused array.
+        PrintWriter predictions = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false);
+        StringBuilder line = new StringBuilder();
+        char[] chars = new char[64];
         for (Instance testInstance : testSet) {
             // Getting output from network
             output = nn.calculateOutputForInstance(testInstance);
@@ -126,14 +134,20 @@ public class Neuralnet {
 
             // Output format
             // if (classValues.get(classification).equals("Rock"))
-                System.out.println(foldIndex + " "
-                    + classValues.get(classification) + " "
-                    + classValues.get(testInstance.getClassIndex()) + " "
-                    + (output[classification] / sum));
+                line.setLength(0);
+                line.append(foldIndex).append(' ')
+                    .append(classValues.get(classification)).append(' ')
+                    .append(classValues.get(testInstance.getClassIndex())).append(' ')
+                    .append(output[classification] / sum).append('\n');
+                if (chars.length < line.length())
+                    chars = new char[2 * line.length()];
+                line.getChars(0, line.length(), chars, 0);
+                predictions.write(chars, 0, line.length());
 
             if (classification == testInstance.getClassIndex())
                 correct++;
         }
+        predictions.flush();
         System.out.println("\nAccuracy: " + (((1.0 * correct)/testSet.size())));
     }
 
@@ -145,43 +159,40 @@ public class Neuralnet {
      * @param filename The filename of the file with all the data
      * @return List of Instance objects from which individual instances will be created
      */
-    private static ArrayList<Instance> getData(String filename) {
-        Scanner file = null;
-        try {
-            file = new Scanner(new File(filename));
-        } catch (FileNotFoundException fnfe) {
-            fnfe.printStackTrace();
-        }
-        assert file != null;
+    static ArrayList<Instance> getData(String filename) {
         ArrayList<Instance> instances = new ArrayList<>();
         boolean isTraining = features.isEmpty();
-        while (file.hasNextLine()) {
-            String line = file.nextLine().trim();
-            if (line.charAt(0) == '%')
-                continue;
-            else if (line.charAt(0) == '@' && isTraining) {
-                if (line.contains("@relation") || line.contains("@data"))
+        try (ArffReader file = new ArffReader(filename)) {
+            while (file.readLine()) {
+                if (file.firstChar() == '%')
                     continue;
-                // Read the attributes
-                String[] values = line.split("\\s+", 3);
-                values[2] = values[2].trim();
-                values[1] = values[1].toLowerCase();
-                String[] allowedValues = null;
-                if (!values[2].equals("numeric") || values[1].equals("'class'")) {
-                    values[2] = values[2].substring(1, values[2].length() - 1).trim();
-                    allowedValues = values[2].split("\\s*,\\s*");
-                }
-                if (!values[1].equals("'class'")) {
-                    if (allowedValues != null)
-                        features.add(new Feature(values[1].substring(1, values[1].length() - 1),
-                                new ArrayList<>(Arrays.asList(allowedValues))));
+                else if (file.firstChar() == '@' && isTraining) {
+                    String line = file.line();
+                    if (line.contains("@relation") || line.contains("@data"))
+                        continue;
+                    // Read the attributes
+                    String[] values = line.split("\\s+", 3);
+                    values[2] = values[2].trim();
+                    values[1] = values[1].toLowerCase();
+                    String[] allowedValues = null;
+                    if (!values[2].equals("numeric") || values[1].equals("'class'")) {
+                        values[2] = values[2].substring(1, values[2].length() - 1).trim();
+                        allowedValues = values[2].split("\\s*,\\s*");
+                    }
+                    if (!values[1].equals("'class'")) {
+                        if (allowedValues != null)
+                            features.add(new Feature(values[1].substring(1, values[1].length() - 1),
+                                    new ArrayList<>(Arrays.asList(allowedValues))));
+                        else
+                            features.add(new Feature(values[1].substring(1, values[1].length() - 1), null));
+                    }
                     else
-                        features.add(new Feature(values[1].substring(1, values[1].length() - 1), null));
-                }
-                else
-                    classValues.addAll(Arrays.asList(allowedValues));
-            } else if (line.charAt(0) != '@')
-                instances.add(new Instance(line.split("\\s*,\\s*")));
+                        classValues.addAll(Arrays.asList(allowedValues));
+                } else if (file.firstChar() != '@')
+                    instances.add(new Instance(file.splitValues()));
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
         }
         return instances;
     }
@@ -191,9 +202,9 @@ public class Neuralnet {
      *
      * @param hiddenWeights 2D array to store the weights from the input to hidden layer
      * @param outputWeights 2D array to store the weights from the hidden to output layer
+     * @param r The generator the weights are drawn from
      */
-    private static void readWeights(double[][] hiddenWeights, double[][] outputWeights) {
-        Random r = new Random();
+    private static void readWeights(double[][] hiddenWeights, double[][] outputWeights, Random r) {
 
         for (int i = 0; i < hiddenWeights.length; i++)
             for (int j = 0; j < hiddenWeights[i].length; j++)